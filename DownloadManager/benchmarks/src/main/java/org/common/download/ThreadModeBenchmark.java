@@ -0,0 +1,326 @@
+package org.common.download;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark compares platform and virtual download threads on thousands of
+ * transfers at once: every invocation starts all transfers together and waits until
+ * they are complete. Server holds every GET for a while before answering,
+ * so transfers spend most of their time blocked in a read, like on a slow network.
+ * Result is time of one batch, peak number of live threads and peak heap use
+ * are reported next to it, run with -prof gc for allocation.
+ * Virtual threads need JDK 21 or newer, the virtual mode fails on older JVMs.
+ * Every transfer takes two file descriptors on the loopback interface,
+ * open file limit (ulimit -n) must be above twice the number of transfers.
+ * @author nbabic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Ddownload.cacheSize=0",
+		"-Dhttp.maxConnections=" + KeepAliveTransport.MAX_CONNECTIONS })
+public class ThreadModeBenchmark {
+	
+	// platform or virtual
+	@Param({ "platform", "virtual" })
+	public String threads;
+	
+	// number of transfers running at the same time
+	@Param({ "1000", "10000" })
+	public int transfers;
+	
+	// size of every file
+	@Param({ "4096" })
+	public int fileSize;
+	
+	// time server holds every GET before answering, in milliseconds
+	@Param({ "200" })
+	public int delay;
+	
+	// server standing in for a slow remote host
+	private LoopbackServer server;
+	// directory downloads are written into
+	private File directory;
+	// number of last file asked for, files are asked for under unique paths so downloads are not coalesced
+	private final AtomicLong lastFile = new AtomicLong();
+	// max number of downloads running at the same time before the trial
+	private int maxActive;
+	
+	/**
+	 * Peak footprint of one batch, reported by JMH per iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint {
+		public long peakThreads;
+		public long peakHeapMB;
+		
+		@Setup(Level.Iteration)
+		public void clear() {
+			peakThreads = 0;
+			peakHeapMB = 0;
+		}
+	}
+	
+	/**
+	 * Start server, select thread mode and let all transfers run at once.
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		int mode = threads.equals("virtual") ? DownloadThreads.VIRTUAL : DownloadThreads.PLATFORM;
+		if (!DownloadThreads.setMode(mode)) {
+			throw new IllegalStateException("Virtual threads need JDK 21 or newer");
+		}
+		
+		server = new LoopbackServer(fileSize, delay);
+		directory = File.createTempFile("thread-mode-benchmark", "");
+		directory.delete();
+		if (!directory.mkdir()) {
+			throw new IOException("Can't create " + directory);
+		}
+		
+		maxActive = DownloadScheduler.getInstance().getMaxActive();
+		DownloadScheduler.getInstance().setMaxActive(transfers);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		DownloadScheduler.getInstance().setMaxActive(maxActive);
+		DownloadThreads.setMode(DownloadThreads.PLATFORM);
+		server.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	@Benchmark
+	public void batch(Footprint footprint) throws Exception {
+		final CountDownLatch done = new CountDownLatch(transfers);
+		final Set<Download> finished = Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+		Observer observer = new Observer() {
+			public void update(Observable o, Object arg) {
+				finished((Download) o, finished, done);
+			}
+		};
+		
+		List<Download> downloads = new ArrayList<Download>(transfers);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		threadBean.resetPeakThreadCount();
+		long peakHeap = 0;
+		for (int i = 0; i < transfers; i++) {
+			URL url = new URL(server.getBase() + lastFile.incrementAndGet() + ".bin");
+			Download download = new Download(url, new File(directory, "file" + i + ".bin").getPath());
+			download.addObserver(observer);
+			// download may have finished before observer was added
+			finished(download, finished, done);
+			downloads.add(download);
+		}
+		
+		// sample heap while transfers wait for the server, thread peak is kept by the JVM
+		while (!done.await(10, TimeUnit.MILLISECONDS)) {
+			peakHeap = Math.max(peakHeap, memoryBean.getHeapMemoryUsage().getUsed());
+		}
+		
+		for (Download download : downloads) {
+			if (download.getStatus() != Download.COMPLETE) {
+				throw new IllegalStateException("Download failed: " + download.getErrorMessage());
+			}
+		}
+		footprint.peakThreads += threadBean.getPeakThreadCount();
+		footprint.peakHeapMB += peakHeap / (1024 * 1024);
+	}
+	
+	/**
+	 * Count download as done once, when it has stopped.
+	 * @param download
+	 * @param finished downloads counted so far
+	 * @param done
+	 */
+	private static void finished(Download download, Set<Download> finished, CountDownLatch done) {
+		int status = download.getStatus();
+		if (status != Download.DOWNLOADING && status != Download.QUEUED && finished.add(download)) {
+			done.countDown();
+		}
+	}
+	
+	/**
+	 * This class is a minimal HTTP/1.1 keep-alive server on one selector thread,
+	 * so ten thousand connections don't need ten thousand server threads.
+	 * HEAD is answered right away, GET after the delay.
+	 */
+	private static class LoopbackServer implements Runnable {
+		
+		private final Selector selector;
+		private final ServerSocketChannel channel;
+		private final Thread thread;
+		private final long delayNanos;
+		// response headers and body of a GET, headers of a HEAD
+		private final ByteBuffer getResponse;
+		private final ByteBuffer headResponse;
+		// connections holding a GET, by time the answer is due
+		private final PriorityQueue<Connection> delayed = new PriorityQueue<Connection>();
+		private volatile boolean closed;
+		
+		/**
+		 * Request and response state of one connection.
+		 */
+		private static class Connection implements Comparable<Connection> {
+			final SocketChannel channel;
+			final ByteBuffer in = ByteBuffer.allocate(4096);
+			ByteBuffer out;
+			long due;
+			
+			Connection(SocketChannel channel) {
+				this.channel = channel;
+			}
+			
+			public int compareTo(Connection other) {
+				return (due < other.due) ? -1 : ((due == other.due) ? 0 : 1);
+			}
+		}
+		
+		LoopbackServer(int fileSize, int delay) throws IOException {
+			delayNanos = delay * 1000000L;
+			byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + fileSize + "\r\n\r\n").getBytes("US-ASCII");
+			byte[] data = new byte[fileSize];
+			new Random(42).nextBytes(data);
+			headResponse = ByteBuffer.allocateDirect(head.length);
+			headResponse.put(head).flip();
+			getResponse = ByteBuffer.allocateDirect(head.length + fileSize);
+			getResponse.put(head).put(data).flip();
+			
+			selector = Selector.open();
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 4096);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+			thread = new Thread(this, "benchmark-server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		String getBase() {
+			return "http://127.0.0.1:" + channel.socket().getLocalPort() + "/file";
+		}
+		
+		void close() throws IOException {
+			closed = true;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		public void run() {
+			try {
+				while (!closed) {
+					Connection next = delayed.peek();
+					long wait = (next == null) ? 0 : Math.max(1, (next.due - System.nanoTime()) / 1000000);
+					selector.select(wait);
+					
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						try {
+							if (key.isAcceptable()) {
+								accept();
+							} else if (key.isReadable()) {
+								read(key);
+							} else if (key.isWritable()) {
+								write(key);
+							}
+						} catch (IOException e) {
+							// client went away
+							key.cancel();
+							key.channel().close();
+						}
+					}
+					
+					// answer GETs whose delay is over
+					long now = System.nanoTime();
+					while (!delayed.isEmpty() && delayed.peek().due <= now) {
+						Connection connection = delayed.poll();
+						connection.out = getResponse.duplicate();
+						SelectionKey key = connection.channel.keyFor(selector);
+						if (key != null && key.isValid()) {
+							key.interestOps(SelectionKey.OP_WRITE);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {}
+			}
+		}
+		
+		private void accept() throws IOException {
+			SocketChannel client;
+			while ((client = channel.accept()) != null) {
+				client.configureBlocking(false);
+				client.socket().setTcpNoDelay(true);
+				client.register(selector, SelectionKey.OP_READ, new Connection(client));
+			}
+		}
+		
+		private void read(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			if (connection.channel.read(connection.in) == -1) {
+				throw new EOFException();
+			}
+			
+			// whole request is in once headers end with an empty line
+			String request = new String(connection.in.array(), 0, connection.in.position(), "US-ASCII");
+			if (!request.endsWith("\r\n\r\n")) {
+				return;
+			}
+			connection.in.clear();
+			if (request.startsWith("HEAD ")) {
+				connection.out = headResponse.duplicate();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				connection.due = System.nanoTime() + delayNanos;
+				delayed.add(connection);
+				key.interestOps(0);
+			}
+		}
+		
+		private void write(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			connection.channel.write(connection.out);
+			if (!connection.out.hasRemaining()) {
+				connection.out = null;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	
+	}
+
+}
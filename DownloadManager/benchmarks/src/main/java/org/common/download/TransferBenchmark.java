@@ -0,0 +1,131 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * This benchmark measures the transfer loop: whole downloads from an in-process 
+ * HTTP server on the loopback interface into a temporary file, 
+ * across initial buffer sizes, file sizes and output modes.
+ * Result is bytes per second, run with -prof gc for allocation rate.
+ * Bytes come from memory, so the numbers depend on CPU and target disk only.
+ * @author nbabic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Ddownload.cacheSize=0" })
+public class TransferBenchmark {
+	
+	// initial size of transfer buffer, it still adapts to the reads afterwards
+	@Param({ "8192", "65536", "1048576" })
+	public int bufferSize;
+	
+	// size of downloaded file
+	@Param({ "1048576", "16777216", "134217728" })
+	public int fileSize;
+	
+	// channel writes on writer threads, or reads into the memory-mapped file
+	@Param({ "channel", "mapped" })
+	public String output;
+	
+	// server standing in for a remote host
+	private HttpServer server;
+	// URL of file on the server
+	private URL url;
+	// file downloads are written into
+	private File target;
+	
+	/**
+	 * Bytes downloaded, reported by JMH per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+		
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+		}
+	}
+	
+	/**
+	 * Start server. It sends no Accept-Ranges, so every download runs over one connection.
+	 * @throws IOException
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		// same bytes in every run
+		final byte[] data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+					if (exchange.getRequestMethod().equals("HEAD")) {
+						exchange.sendResponseHeaders(200, -1);
+						return;
+					}
+					exchange.sendResponseHeaders(200, data.length);
+					OutputStream body = exchange.getResponseBody();
+					body.write(data);
+					body.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin");
+		target = File.createTempFile("transfer-benchmark", ".bin");
+		ChannelTransfer.initialBufferSize = bufferSize;
+		Download.setDefaultOutputMode(output.equals("mapped") ? Download.MAPPED_OUTPUT : Download.CHANNEL_OUTPUT);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop(0);
+		target.delete();
+	}
+	
+	@Benchmark
+	public void download(Bytes bytes) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		Download download = new Download(url, target.getPath());
+		download.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (isFinished((Download) o)) {
+					done.countDown();
+				}
+			}
+		});
+		// download may have finished before observer was added
+		if (!isFinished(download)) {
+			done.await();
+		}
+		
+		if (download.getStatus() != Download.COMPLETE) {
+			throw new IllegalStateException("Download failed: " + download.getErrorMessage());
+		}
+		bytes.bytes += download.getSize();
+	}
+	
+	private static boolean isFinished(Download download) {
+		int status = download.getStatus();
+		return status != Download.DOWNLOADING && status != Download.QUEUED;
+	}
+
+}
@@ -0,0 +1,303 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.*;
+import javax.servlet.http.*;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.*;
+import org.eclipse.jetty.io.*;
+import org.eclipse.jetty.server.*;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark measures what persistent and multiplexed connections save on many small files:
+ * batches of downloads from an in-process HTTP or HTTPS server on the loopback interface,
+ * with KeepAliveTransport, CloseTransport and HttpClientTransport (http2).
+ * Result is files per second, connections and requests are counted by the server
+ * and reported next to it, so handshakes saved can be seen even where loopback
+ * makes them cheap. Server is Jetty, it speaks HTTP/1.1 and h2c (upgrade from HTTP/1.1)
+ * on http, and HTTP/1.1 and h2 chosen by ALPN on https, with a self-signed key
+ * made with keytool for the trial. Transport http2 needs Java 11 or newer.
+ * @author nbabic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Ddownload.cacheSize=0",
+		"-Dhttp.maxConnections=" + KeepAliveTransport.MAX_CONNECTIONS, "-Dorg.eclipse.jetty.LEVEL=WARN" })
+public class TransportBenchmark {
+	
+	// Number of files downloaded together in one batch.
+	private static final int FILES = 50;
+	
+	// keep-alive, close or http2
+	@Param({ "keep-alive", "close", "http2" })
+	public String transport;
+	
+	// http or https
+	@Param({ "http", "https" })
+	public String scheme;
+	
+	// size of every file
+	@Param({ "16384" })
+	public int fileSize;
+	
+	// server standing in for a remote host
+	private Server server;
+	// server address, files are asked for under unique paths so downloads are not coalesced
+	private String base;
+	// directory downloads are written into
+	private File directory;
+	// body of every file
+	private byte[] data;
+	// number of last file asked for
+	private final AtomicLong lastFile = new AtomicLong();
+	// connections accepted by the server
+	private final AtomicLong accepted = new AtomicLong();
+	// requests answered by the server
+	private final AtomicLong served = new AtomicLong();
+	
+	/**
+	 * Connections and requests seen by the server, reported by JMH per iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Connections {
+		public long connections;
+		public long requests;
+		
+		@Setup(Level.Iteration)
+		public void clear() {
+			connections = 0;
+			requests = 0;
+		}
+	}
+	
+	/**
+	 * Start server and select transport.
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+		directory = createDirectory();
+		
+		server = new Server();
+		HttpConfiguration config = new HttpConfiguration();
+		HttpConnectionFactory http1 = new HttpConnectionFactory(config);
+		ServerConnector connector;
+		if (scheme.equals("https")) {
+			ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+			alpn.setDefaultProtocol(http1.getProtocol());
+			SslConnectionFactory tls = new SslConnectionFactory(createServerContext(), alpn.getProtocol());
+			connector = new CountingConnector(server, tls, alpn, new HTTP2ServerConnectionFactory(config), http1);
+			// before the HttpClient of HttpClientTransport is built
+			trustLoopback();
+		} else {
+			connector = new CountingConnector(server, http1, new HTTP2CServerConnectionFactory(config));
+		}
+		connector.setHost("127.0.0.1");
+		server.addConnector(connector);
+		server.setHandler(new AbstractHandler() {
+			public void handle(String target, Request baseRequest, HttpServletRequest request,
+					HttpServletResponse response) throws IOException {
+				baseRequest.setHandled(true);
+				served.incrementAndGet();
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentLength(data.length);
+				if (!request.getMethod().equals("HEAD")) {
+					response.getOutputStream().write(data);
+				}
+			}
+		});
+		server.start();
+		
+		base = scheme + "://127.0.0.1:" + connector.getLocalPort() + "/file";
+		Download.setDefaultTransport(getTransport());
+	}
+	
+	/**
+	 * Get transport selected by parameter.
+	 * @return
+	 */
+	private ITransport getTransport() {
+		if (transport.equals("close")) {
+			return CloseTransport.INSTANCE;
+		}
+		if (transport.equals("http2")) {
+			ITransport httpClient = Transports.getHttpClient();
+			if (httpClient == null) {
+				throw new IllegalStateException("HTTP/2 transport needs Java 11 or newer");
+			}
+			return httpClient;
+		}
+		return KeepAliveTransport.INSTANCE;
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.stop();
+		Download.setDefaultTransport(KeepAliveTransport.INSTANCE);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public void batch(Connections connections) throws Exception {
+		long acceptedBefore = accepted.get();
+		long servedBefore = served.get();
+		
+		final CountDownLatch done = new CountDownLatch(FILES);
+		final Set<Download> finished = Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+		Observer observer = new Observer() {
+			public void update(Observable o, Object arg) {
+				finished((Download) o, finished, done);
+			}
+		};
+		List<Download> downloads = new ArrayList<Download>();
+		for (int i = 0; i < FILES; i++) {
+			URL url = new URL(base + lastFile.incrementAndGet() + ".bin");
+			Download download = new Download(url, new File(directory, "file" + i + ".bin").getPath());
+			download.addObserver(observer);
+			// download may have finished before observer was added
+			finished(download, finished, done);
+			downloads.add(download);
+		}
+		done.await();
+		
+		for (Download download : downloads) {
+			if (download.getStatus() != Download.COMPLETE) {
+				throw new IllegalStateException("Download failed: " + download.getErrorMessage());
+			}
+		}
+		connections.connections += accepted.get() - acceptedBefore;
+		connections.requests += served.get() - servedBefore;
+	}
+	
+	/**
+	 * Count download as done once, when it has stopped.
+	 * @param download
+	 * @param finished downloads counted so far
+	 * @param done
+	 */
+	private static void finished(Download download, Set<Download> finished, CountDownLatch done) {
+		int status = download.getStatus();
+		if (status != Download.DOWNLOADING && status != Download.QUEUED && finished.add(download)) {
+			done.countDown();
+		}
+	}
+	
+	private static File createDirectory() throws IOException {
+		File directory = File.createTempFile("transport-benchmark", "");
+		directory.delete();
+		if (!directory.mkdir()) {
+			throw new IOException("Can't create " + directory);
+		}
+		return directory;
+	}
+	
+	/**
+	 * This class counts TCP connections accepted by the server,
+	 * Jetty opens several protocol connections on each of them.
+	 */
+	private class CountingConnector extends ServerConnector {
+		
+		CountingConnector(Server server, ConnectionFactory... factories) {
+			super(server, factories);
+		}
+		
+		@Override
+		protected ChannelEndPoint newEndPoint(SocketChannel channel, ManagedSelector selector, SelectionKey key) 
+				throws IOException {
+			accepted.incrementAndGet();
+			return super.newEndPoint(channel, selector, key);
+		}
+		
+	}
+	
+	/**
+	 * Create server TLS context with a self-signed key made by keytool of the running JDK.
+	 * Key names the loopback address, HttpClient checks it even when the certificate is trusted.
+	 * @return
+	 * @throws Exception
+	 */
+	private SslContextFactory.Server createServerContext() throws Exception {
+		File keyStoreFile = new File(directory, "server.jks");
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keyalg", "RSA", "-keysize", "2048",
+				"-alias", "server", "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1", "-validity", "1",
+				"-storetype", "JKS", "-keystore", keyStoreFile.getPath(), "-storepass", "benchmark", "-keypass", "benchmark")
+				.redirectErrorStream(true).start();
+		InputStream output = process.getInputStream();
+		try {
+			while (output.read() != -1) {
+				// keytool only prints warnings, read them so it doesn't block
+			}
+		} finally {
+			output.close();
+		}
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed");
+		}
+		
+		SslContextFactory.Server context = new SslContextFactory.Server();
+		context.setKeyStorePath(keyStoreFile.getPath());
+		context.setKeyStoreType("JKS");
+		context.setKeyStorePassword("benchmark");
+		context.setKeyManagerPassword("benchmark");
+		// h2 rejects the ciphers HTTP/2 forbids, they must not be picked first
+		context.setCipherComparator(HTTP2Cipher.COMPARATOR);
+		return context;
+	}
+	
+	/**
+	 * Make HTTPS connections of this JVM accept the self-signed key of the loopback server,
+	 * through HttpsURLConnection as well as through HttpClient, which uses the default context.
+	 * Only for the benchmark fork, which talks to nothing else.
+	 * @throws GeneralSecurityException
+	 */
+	private static void trustLoopback() throws GeneralSecurityException {
+		TrustManager trustAll = new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+			
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+			
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+		SSLContext.setDefault(context);
+		HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+		HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+			public boolean verify(String hostname, SSLSession session) {
+				return "127.0.0.1".equals(hostname);
+			}
+		});
+	}
+
+}
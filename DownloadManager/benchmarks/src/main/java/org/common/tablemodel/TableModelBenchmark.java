@@ -0,0 +1,115 @@
+package org.common.tablemodel;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+
+import org.common.download.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * This benchmark measures the table model hot paths at 1k, 10k and 100k rows:
+ * progress events going through update() and being flushed once per frame, 
+ * and getValueAt() for every cell of the rows visible in a table.
+ * Downloads point at a local socket that never answers, so the first one 
+ * stays downloading, the rest stay queued and no bytes are transferred.
+ * @author nbabic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Ddownload.cacheSize=0" })
+public class TableModelBenchmark {
+	
+	// progress events between two frames
+	private static final int EVENTS_PER_FRAME = 1000;
+	
+	// rows painted by one table repaint
+	private static final int VISIBLE_ROWS = 30;
+	
+	@Param({ "1000", "10000", "100000" })
+	public int rows;
+	
+	// socket that accepts connections and never answers
+	private ServerSocket server;
+	// directory of target files, no file is written
+	private File directory;
+	// table under test
+	private DownloadsTableModel model;
+	// dispatcher of table, driven by the benchmark instead of its timer
+	private ProgressDispatcher dispatcher;
+	// download of each row
+	private Download[] downloads;
+	// state of row generator, fixed seed so every run picks the same rows
+	private int seed = 42;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		directory = new File(System.getProperty("java.io.tmpdir"), "table-model-benchmark");
+		directory.mkdirs();
+		
+		// one download blocks on the silent socket and holds the only slot
+		DownloadScheduler.getInstance().setMaxActive(1);
+		
+		model = new DownloadsTableModel();
+		dispatcher = model.getProgressDispatcher();
+		dispatcher.stop();
+		
+		downloads = new Download[rows];
+		for (int i = 0; i < rows; i++) {
+			URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/row-" + i);
+			downloads[i] = new Download(url, new File(directory, "row-" + i).getPath());
+			model.addDownload(downloads[i]);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		server.close();
+		directory.delete();
+	}
+	
+	/**
+	 * Progress events from random rows, flushed to the table as one frame.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_FRAME)
+	public void progressEvents() {
+		for (int i = 0; i < EVENTS_PER_FRAME; i++) {
+			model.update(downloads[nextRow()], Download.PROGRESS);
+		}
+		dispatcher.actionPerformed(null);
+	}
+	
+	/**
+	 * Every cell of a screen of rows starting at a random row.
+	 * @param blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(VISIBLE_ROWS)
+	public void getValueAt(Blackhole blackhole) {
+		int first = nextRow() % Math.max(1, rows - VISIBLE_ROWS);
+		int columns = model.getColumnCount();
+		for (int row = first; row < first + VISIBLE_ROWS; row++) {
+			for (int column = 0; column < columns; column++) {
+				blackhole.consume(model.getValueAt(row, column));
+			}
+		}
+	}
+	
+	/**
+	 * Get next row of a xorshift sequence.
+	 * @return
+	 */
+	private int nextRow() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return (seed & Integer.MAX_VALUE) % rows;
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.common.download;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds bandwidth limits shared by downloads:
+ * a global limit for all downloads together and limits for each host.
+ * Limits are shared token buckets, so bandwidth not used by idle or paused
+ * downloads goes to the active ones instead of being split up front.
+ * All limits are in bytes per second, 0 means unlimited, and can be changed at runtime.
+ * @author nbabic
+ */
+public class BandwidthLimiter {
+	
+	// limiter shared by all downloads
+	private static final BandwidthLimiter instance = new BandwidthLimiter();
+	
+	// limit of all downloads together
+	private final TokenBucket global = new TokenBucket(0);
+	// limit of each host
+	private final ConcurrentHashMap<String, TokenBucket> hosts = new ConcurrentHashMap<String, TokenBucket>();
+	
+	/**
+	 * Get limiter shared by all downloads.
+	 * @return
+	 */
+	public static BandwidthLimiter getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Get limit of all downloads together.
+	 * @return
+	 */
+	public long getGlobalRate() {
+		return global.getRate();
+	}
+	
+	/**
+	 * Set limit of all downloads together.
+	 * @param rate
+	 */
+	public void setGlobalRate(long rate) {
+		//System.out.println("BandwidthLimiter.setGlobalRate() " + rate);
+		global.setRate(rate);
+	}
+	
+	/**
+	 * Get limit of downloads from host.
+	 * @param host
+	 * @return
+	 */
+	public long getHostRate(String host) {
+		TokenBucket bucket = hosts.get(host.toLowerCase());
+		return (bucket == null) ? 0 : bucket.getRate();
+	}
+	
+	/**
+	 * Set limit of downloads from host.
+	 * @param host
+	 * @param rate
+	 */
+	public void setHostRate(String host, long rate) {
+		//System.out.println("BandwidthLimiter.setHostRate() " + host + " " + rate);
+		getHostBucket(host).setRate(rate);
+	}
+	
+	/**
+	 * Get bucket of host, created unlimited the first time it is needed.
+	 * Downloads look it up once per connection, not per chunk.
+	 * @param host
+	 * @return
+	 */
+	TokenBucket getHostBucket(String host) {
+		String key = host.toLowerCase();
+		TokenBucket bucket = hosts.get(key);
+		if (bucket == null) {
+			TokenBucket created = new TokenBucket(0);
+			bucket = hosts.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+	
+	/**
+	 * Take bytes just read from the global, host and download buckets.
+	 * @param host
+	 * @param download
+	 * @param count
+	 * @throws InterruptedIOException
+	 */
+	void consume(TokenBucket host, TokenBucket download, long count) throws InterruptedIOException {
+		download.consume(count);
+		host.consume(count);
+		global.consume(count);
+	}
+	
+	/**
+	 * Get largest read that stays within the burst of every limiting bucket,
+	 * so slow limits are enforced smoothly instead of in long pauses.
+	 * @param host
+	 * @param download
+	 * @param max
+	 * @return
+	 */
+	int getMaxRead(TokenBucket host, TokenBucket download, int max) {
+		long limit = max;
+		if (download.isLimited()) {
+			limit = Math.min(limit, download.getBurst());
+		}
+		if (host.isLimited()) {
+			limit = Math.min(limit, host.getBurst());
+		}
+		if (global.isLimited()) {
+			limit = Math.min(limit, global.getBurst());
+		}
+		return (int) limit;
+	}
+
+}
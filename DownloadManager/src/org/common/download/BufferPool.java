@@ -0,0 +1,271 @@
+package org.common.download;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class recycles transfer buffers across all downloads.
+ * Buffers come in power of two size classes from MIN_BUFFER_SIZE to MAX_BUFFER_SIZE.
+ * They are heap buffers, because connections hand out bytes through an InputStream, which
+ * reads straight into a buffer's array: a direct buffer would need the stream copied through
+ * a heap array of its own first.
+ * Buffers are kept in lock-free free lists and their total memory is capped,
+ * when the cap is reached any free buffer is handed out, or the caller waits until
+ * a transfer or writer releases one, so no garbage is made per chunk.
+ * Waiting slows readers down to the writers, which never need a buffer to finish,
+ * and ends when the reader is interrupted by pause or cancel.
+ * Cap can be set at startup with -Ddownload.bufferMemory=bytes.
+ * @author nbabic
+ */
+public class BufferPool {
+	
+	// Smallest buffer size class.
+	public static final int MIN_BUFFER_SIZE = 8 * 1024;
+	
+	// Largest buffer size class.
+	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+	
+	// Default cap of buffer memory.
+	public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+	
+	// pool shared by all downloads
+	private static final BufferPool instance = 
+			new BufferPool(Long.getLong("download.bufferMemory", DEFAULT_MAX_MEMORY));
+	
+	// free buffers for each size class
+	private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+	// cap of buffer memory
+	private final long maxMemory;
+	// buffer memory allocated by pool, free or in use
+	private final AtomicLong allocated = new AtomicLong();
+	// memory of buffers handed out and not yet released
+	private final AtomicLong inUse = new AtomicLong();
+	// requests served from free lists
+	private final AtomicLong hits = new AtomicLong();
+	// requests that needed a new buffer
+	private final AtomicLong misses = new AtomicLong();
+	// requests that waited for a released buffer because of the cap
+	private final AtomicLong waits = new AtomicLong();
+	// threads waiting for a released buffer
+	private final AtomicInteger waiters = new AtomicInteger();
+	// waiting threads are woken on this when a buffer is released
+	private final Object releaseLock = new Object();
+	
+	/**
+	 * Get pool shared by all downloads.
+	 * @return
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Create pool with cap of buffer memory.
+	 * @param maxMemory
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(long maxMemory) {
+		this.maxMemory = maxMemory;
+		int classes = sizeClass(MAX_BUFFER_SIZE) + 1;
+		freeLists = new ConcurrentLinkedQueue[classes];
+		for (int i = 0; i < classes; i++) {
+			freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+	
+	/**
+	 * Get buffer of at least the given size, rounded up to its size class.
+	 * Returned buffer is cleared and must be given back with release().
+	 * @param size
+	 * @return
+	 * @throws InterruptedIOException if interrupted while waiting for a buffer at the cap
+	 */
+	public ByteBuffer acquire(int size) throws InterruptedIOException {
+		int sizeClass = sizeClass(size);
+		
+		ByteBuffer buffer = freeLists[sizeClass].poll();
+		if (buffer != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			buffer = allocate(sizeClass);
+		}
+		
+		inUse.addAndGet(buffer.capacity());
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Give buffer back to the pool.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		inUse.addAndGet(-buffer.capacity());
+		freeLists[sizeClass(buffer.capacity())].offer(buffer);
+		// waiter that checked the lists before this offer is registered already
+		if (waiters.get() > 0) {
+			synchronized (releaseLock) {
+				releaseLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Get share of requests served without allocating, from 0 to 1.
+	 * @return
+	 */
+	public double getHitRate() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return (total == 0) ? 0 : (double) hitCount / total;
+	}
+	
+	/**
+	 * Get number of requests served from free lists.
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Get number of requests that needed a new buffer.
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Get number of requests that waited for a released buffer because of the cap.
+	 * @return
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+	
+	/**
+	 * Get memory of buffers currently used by transfers.
+	 * @return
+	 */
+	public long getMemoryInUse() {
+		return inUse.get();
+	}
+	
+	/**
+	 * Get memory allocated by the pool, free or in use.
+	 * @return
+	 */
+	public long getMemoryAllocated() {
+		return allocated.get();
+	}
+	
+	/**
+	 * Get cap of buffer memory.
+	 * @return
+	 */
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+	
+	/**
+	 * Get size of buffers in size class.
+	 * @param sizeClass
+	 * @return
+	 */
+	static int classSize(int sizeClass) {
+		return MIN_BUFFER_SIZE << sizeClass;
+	}
+	
+	/**
+	 * Get smallest size class holding size bytes.
+	 * @param size
+	 * @return
+	 */
+	static int sizeClass(int size) {
+		int sizeClass = 0;
+		while (classSize(sizeClass) < size && classSize(sizeClass) < MAX_BUFFER_SIZE) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+	
+	/**
+	 * Allocate buffer if it fits under the cap.
+	 * Over the cap a free buffer of another size is reused, 
+	 * or the caller waits until one is released.
+	 * @param sizeClass
+	 * @return
+	 * @throws InterruptedIOException
+	 */
+	private ByteBuffer allocate(int sizeClass) throws InterruptedIOException {
+		int size = classSize(sizeClass);
+		
+		// reserve memory for new buffer
+		long current;
+		do {
+			current = allocated.get();
+			if (current + size > maxMemory) {
+				return awaitFree(sizeClass);
+			}
+		} while (!allocated.compareAndSet(current, current + size));
+		
+		return ByteBuffer.allocate(size);
+	}
+	
+	/**
+	 * Take any free buffer, waiting until one is released if there is none.
+	 * Only readers wait here, writers release buffers without ever taking one.
+	 * @param sizeClass preferred size class
+	 * @return
+	 * @throws InterruptedIOException if paused or cancelled while waiting
+	 */
+	private ByteBuffer awaitFree(int sizeClass) throws InterruptedIOException {
+		ByteBuffer buffer = pollAny(sizeClass);
+		if (buffer != null) {
+			return buffer;
+		}
+		
+		waits.incrementAndGet();
+		synchronized (releaseLock) {
+			waiters.incrementAndGet();
+			try {
+				// buffer released before waiters was raised is found by this poll
+				while ((buffer = pollAny(sizeClass)) == null) {
+					releaseLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a buffer");
+			} finally {
+				waiters.decrementAndGet();
+			}
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Take free buffer of the size class, or the nearest smaller one, or the nearest larger one.
+	 * @param sizeClass
+	 * @return buffer or null if all free lists are empty
+	 */
+	private ByteBuffer pollAny(int sizeClass) {
+		for (int i = sizeClass; i >= 0; i--) {
+			ByteBuffer buffer = freeLists[i].poll();
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		for (int i = sizeClass + 1; i < freeLists.length; i++) {
+			ByteBuffer buffer = freeLists[i].poll();
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return null;
+	}
+	
+}
@@ -0,0 +1,260 @@
+package org.common.download;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class remembers downloaded files by URL, with server validators 
+ * (ETag, Last-Modified), size and local path, so a download of an unchanged 
+ * file can be answered by the server with 304 Not Modified instead of the file.
+ * Index is a tab separated text file, loaded on first use and saved 
+ * a few seconds after it changes, least recently used entries are dropped 
+ * when there are more than max entries.
+ * File can be set at startup with -Ddownload.cacheIndex=path, 
+ * max entries with -Ddownload.cacheSize=n, 0 turns the index off.
+ * @author nbabic
+ */
+public class CacheIndex {
+	
+	// Default max number of entries.
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	
+	// Time from first change to save, in milliseconds.
+	private static final long SAVE_DELAY = 5000;
+	
+	// Written in place of missing values.
+	private static final String NONE = "-";
+	
+	// index shared by all downloads
+	private static final CacheIndex instance = new CacheIndex(
+			new File(System.getProperty("download.cacheIndex", 
+					System.getProperty("user.home") + File.separator + ".downloadmanager" + File.separator + "cache.idx")),
+			Integer.getInteger("download.cacheSize", DEFAULT_MAX_ENTRIES));
+	
+	/**
+	 * This class holds what is known about one downloaded URL.
+	 */
+	static class Entry {
+		final String url;
+		final String etag;
+		final String lastModified;
+		final long size;
+		final String path;
+		
+		Entry(String url, String etag, String lastModified, long size, String path) {
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.path = path;
+		}
+		
+		/**
+		 * Check that local file is still there with the same size.
+		 * @return
+		 */
+		boolean isFilePresent() {
+			File file = new File(path);
+			return file.isFile() && file.length() == size;
+		}
+	}
+	
+	// file index is saved in
+	private final File file;
+	// max number of entries
+	private final int maxEntries;
+	// entries in least recently used order, null until loaded
+	private LinkedHashMap<String, Entry> entries;
+	// true while a save is waiting
+	private boolean saveScheduled;
+	// runs delayed saves, created with first save
+	private Timer timer;
+	
+	/**
+	 * Get index shared by all downloads.
+	 * @return
+	 */
+	public static CacheIndex getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Create index kept in file.
+	 * @param file
+	 * @param maxEntries
+	 */
+	public CacheIndex(File file, int maxEntries) {
+		this.file = file;
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * Get max number of entries, 0 if index is off.
+	 * @return
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	
+	/**
+	 * Get number of entries.
+	 * @return
+	 */
+	public synchronized int size() {
+		load();
+		return entries.size();
+	}
+	
+	/**
+	 * Get entry of URL whose local file is still present.
+	 * @param url
+	 * @return entry or null if URL is not known
+	 */
+	synchronized Entry get(String url) {
+		if (maxEntries == 0) {
+			return null;
+		}
+		load();
+		Entry entry = entries.get(url);
+		return (entry != null && entry.isFilePresent()) ? entry : null;
+	}
+	
+	/**
+	 * Remember downloaded URL.
+	 * @param entry
+	 */
+	synchronized void put(Entry entry) {
+		if (maxEntries == 0) {
+			return;
+		}
+		load();
+		entries.put(entry.url, entry);
+		scheduleSave();
+	}
+	
+	/**
+	 * Save index now if it has changed.
+	 */
+	public synchronized void flush() {
+		if (!saveScheduled) {
+			return;
+		}
+		saveScheduled = false;
+		try {
+			save();
+		} catch (IOException e) {
+			// index is only a shortcut, downloads are not affected
+		}
+	}
+	
+	/**
+	 * Read index from file the first time it is needed.
+	 */
+	private void load() {
+		if (entries != null) {
+			return;
+		}
+		
+		// access order, eldest entry is the least recently used
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, CacheIndex.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		
+		if (!file.isFile()) {
+			return;
+		}
+		
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// url, etag, last modified, size, path
+				String[] values = line.split("\t");
+				if (values.length != 5) {
+					continue;
+				}
+				try {
+					entries.put(values[0], new Entry(values[0], value(values[1]), value(values[2]), 
+							Long.parseLong(values[3]), values[4]));
+				} catch (NumberFormatException e) {
+					// skip damaged line
+				}
+			}
+		} catch (IOException e) {
+			// start with what was read
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Write index to file, least recently used first so order survives reload.
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		//System.out.println("CacheIndex.save()");
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory()) {
+			parent.mkdirs();
+		}
+		
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		try {
+			for (Entry entry : entries.values()) {
+				writer.write(entry.url + "\t" + field(entry.etag) + "\t" + field(entry.lastModified) + "\t" 
+						+ entry.size + "\t" + entry.path + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't write cache index " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Save index a little later, so many changes close together are saved once.
+	 * Index is also saved when the JVM exits.
+	 */
+	private void scheduleSave() {
+		if (saveScheduled) {
+			return;
+		}
+		saveScheduled = true;
+		
+		if (timer == null) {
+			timer = new Timer("cache-index", true);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+		timer.schedule(new TimerTask() {
+			public void run() {
+				flush();
+			}
+		}, SAVE_DELAY);
+	}
+	
+	private static String field(String value) {
+		return (value == null) ? NONE : value.replace('\t', ' ');
+	}
+	
+	private static String value(String field) {
+		return field.equals(NONE) ? null : field;
+	}
+
+}
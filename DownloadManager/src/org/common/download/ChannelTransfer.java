@@ -0,0 +1,290 @@
+package org.common.download;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * This class copies bytes of one byte range from a server connection 
+ * into the target file through a NIO file channel.
+ * Buffers are taken from the shared BufferPool, filled by reading the connection stream
+ * into their arrays and handed to a WriteBehind, which writes them on writer threads 
+ * while the next chunk is read, so no memory is allocated per chunk. Buffer size follows 
+ * the link speed: it grows while reads keep filling it and shrinks while reads use only a small part of it.
+ * In mapped output mode the file is mapped in windows and each chunk read 
+ * is copied into the mapped window, without a write call.
+ * @author nbabic
+ */
+class ChannelTransfer {
+	
+	// Default initial size of transfer buffer.
+	static final int BUFFER_SIZE = 64 * 1024;
+	
+	// Initial size of transfer buffer, can be set with -Ddownload.bufferSize=bytes.
+	static volatile int initialBufferSize = Integer.getInteger("download.bufferSize", BUFFER_SIZE);
+	
+	// Time over which throughput is checked, in nanoseconds.
+	private static final long STALL_WINDOW = RetryPolicy.STALL_WINDOW * 1000000L;
+	
+	// Number of reads in a row that must agree before buffer is resized.
+	private static final int RESIZE_READS = 8;
+	
+	// Size of file window mapped at once in mapped output mode, can be set with -Ddownload.mapWindow=bytes.
+	static final int MAP_WINDOW = Integer.getInteger("download.mapWindow", 16 * 1024 * 1024);
+	
+	// download this transfer belongs to
+	private final Download download;
+	// connection to read from
+	private final InputStream source;
+	// file to write into
+	private final FileChannel target;
+	// pool buffers come from
+	private final BufferPool pool = BufferPool.getInstance();
+	// buffer next chunk is read into, a new one is taken when a chunk goes to the writer
+	private ByteBuffer buffer = pool.acquire(initialBufferSize);
+	// size of buffers taken for next chunks
+	private int bufferSize = buffer.capacity();
+	// bandwidth limits this transfer is subject to
+	private final BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+	private final TokenBucket hostBucket;
+	private final TokenBucket downloadBucket;
+	// start of current throughput window
+	private long windowStart = System.nanoTime();
+	// bytes read in current window
+	private long windowBytes;
+	// time spent waiting for bandwidth limits and for the disk in current window, not held against the connection
+	private long windowWaited;
+	// mapped part of file in mapped output mode, null until first read
+	private MappedByteBuffer window;
+	// file offset of first byte of window
+	private long windowOffset;
+	// reads in a row that filled the whole buffer
+	private int fullReads;
+	// reads in a row that filled less than a quarter of the buffer
+	private int sparseReads;
+	
+	/**
+	 * Create transfer from server stream into file.
+	 * @param download
+	 * @param stream
+	 * @param file
+	 * @throws InterruptedIOException if paused or cancelled while waiting for a buffer
+	 */
+	ChannelTransfer(Download download, InputStream stream, RandomAccessFile file) throws InterruptedIOException {
+		this.download = download;
+		this.source = stream;
+		this.target = file.getChannel();
+		this.hostBucket = limiter.getHostBucket(download.getHost());
+		this.downloadBucket = download.getRateBucket();
+	}
+	
+	/**
+	 * Copy bytes into segment's range until it is complete, 
+	 * the server closes the connection or download is no longer running.
+	 * Returns false if the connection was closed before the range was complete.
+	 * Chunks read are all written when this returns, segment position is where reading stopped.
+	 * @param segment
+	 * @return
+	 * @throws IOException
+	 * @throws StalledException if connection is slower than RetryPolicy.MIN_RATE
+	 */
+	boolean copy(Segment segment) throws IOException {
+		//System.out.println("ChannelTransfer.copy()");
+		if (download.getOutputMode() == Download.MAPPED_OUTPUT) {
+			return copyMapped(segment);
+		}
+		
+		WriteBehind writer = new WriteBehind(download, target, segment);
+		try {
+			while (download.getStatus() == Download.DOWNLOADING && segment.getUnreserved() > 0) {
+				// Read at most what is left of the range and what bandwidth limits allow at once.
+				int capacity = buffer.capacity();
+				int maxRead = limiter.getMaxRead(hostBucket, downloadBucket, capacity);
+				int length = (int) Math.min(maxRead, segment.getUnreserved());
+				
+				int count = source.read(buffer.array(), buffer.arrayOffset(), length);
+				if (count == -1) {
+					writer.flush();
+					return false;
+				}
+				
+				// range may have been split off while reading, extra bytes belong to another connection
+				count = segment.reserve(count);
+				
+				// Chunk is written after the ones before it while the next one is read.
+				buffer.clear();
+				buffer.limit(count);
+				ByteBuffer chunk = buffer;
+				buffer = null;
+				// blocks while the writer queue is full, a slow disk is not a stalled server
+				long writeStart = System.nanoTime();
+				writer.write(chunk);
+				windowWaited += System.nanoTime() - writeStart;
+				
+				adapt(count, capacity);
+				buffer = pool.acquire(bufferSize);
+				
+				// wait here if reading faster than the limits
+				long waitStart = System.nanoTime();
+				limiter.consume(hostBucket, downloadBucket, count);
+				windowWaited += System.nanoTime() - waitStart;
+				
+				checkThroughput(count);
+			}
+			writer.flush();
+			return true;
+		} finally {
+			// segment may go to another connection after this, its bytes must be in the file
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Copy bytes into segment's range through the mapped file.
+	 * Chunk is read into the buffer and copied into the mapped window, the stream can't read into it.
+	 * Bytes are reserved before the read, so a split can't give them to another connection
+	 * while they are being read. Mapped window is forced to disk when copy ends,
+	 * on completion as well as on pause.
+	 * @param segment
+	 * @return false if connection was closed before the range was complete
+	 * @throws IOException
+	 */
+	private boolean copyMapped(Segment segment) throws IOException {
+		//System.out.println("ChannelTransfer.copyMapped()");
+		try {
+			while (download.getStatus() == Download.DOWNLOADING && segment.getUnreserved() > 0) {
+				long position = segment.getReserved();
+				ByteBuffer chunk = map(position);
+				if (buffer.capacity() != bufferSize) {
+					pool.release(buffer);
+					buffer = null;
+					buffer = pool.acquire(bufferSize);
+				}
+				
+				// Read at most what bandwidth limits allow, what is left of the range and of the window.
+				int maxRead = limiter.getMaxRead(hostBucket, downloadBucket, buffer.capacity());
+				int reserved = segment.reserve(Math.min(maxRead, chunk.remaining()));
+				if (reserved == 0) {
+					break;
+				}
+				
+				int count = source.read(buffer.array(), buffer.arrayOffset(), reserved);
+				segment.unreserve(reserved - Math.max(count, 0));
+				if (count == -1) {
+					return false;
+				}
+				chunk.put(buffer.array(), buffer.arrayOffset(), count);
+				
+				// bytes are in the file already, hash them while they are in memory
+				ChecksumVerifier verifier = download.getVerifier();
+				if (verifier != null) {
+					verifier.written(segment, buffer, count);
+				} else {
+					segment.advance(count);
+				}
+				download.addProgress(count);
+				
+				adapt(count, bufferSize);
+				
+				// wait here if reading faster than the limits
+				long waitStart = System.nanoTime();
+				limiter.consume(hostBucket, downloadBucket, count);
+				windowWaited += System.nanoTime() - waitStart;
+				
+				checkThroughput(count);
+			}
+			return true;
+		} finally {
+			if (window != null) {
+				window.force();
+			}
+		}
+	}
+	
+	/**
+	 * Get mapped part of file from position on, mapping next window if position is past the current one.
+	 * @param position
+	 * @return buffer with index 0 at position
+	 * @throws IOException
+	 */
+	private ByteBuffer map(long position) throws IOException {
+		if (window == null || position < windowOffset || position >= windowOffset + window.capacity()) {
+			// dirty pages of previous window are written back by the system, window is unmapped when collected
+			long length = Math.min(MAP_WINDOW, download.getSize() - position);
+			window = target.map(FileChannel.MapMode.READ_WRITE, position, length);
+			windowOffset = position;
+		}
+		ByteBuffer chunk = window.duplicate();
+		chunk.position((int) (position - windowOffset));
+		return chunk.slice();
+	}
+	
+	/**
+	 * Abort connection that delivered less than the minimal throughput over the last window.
+	 * A read that blocks completely is ended by the read timeout instead.
+	 * @param count
+	 * @throws StalledException
+	 */
+	private void checkThroughput(int count) throws StalledException {
+		windowBytes += count;
+		long now = System.nanoTime();
+		long elapsed = now - windowStart - windowWaited;
+		if (elapsed < STALL_WINDOW) {
+			return;
+		}
+		
+		long rate = (long) (windowBytes * 1e9 / elapsed);
+		if (rate < RetryPolicy.MIN_RATE) {
+			throw new StalledException("Connection stalled at " + rate + " bytes/s");
+		}
+		windowStart = now;
+		windowBytes = 0;
+		windowWaited = 0;
+	}
+	
+	/**
+	 * Give buffer back to the pool. Transfer can't be used after this.
+	 */
+	void close() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * Grow buffer when reads keep filling it, shrink it when reads keep using little of it.
+	 * @param count
+	 * @param capacity size of buffer count was read into
+	 */
+	private void adapt(int count, int capacity) {
+		if (count == capacity) {
+			fullReads++;
+			sparseReads = 0;
+		} else if (count < capacity / 4) {
+			sparseReads++;
+			fullReads = 0;
+		} else {
+			fullReads = 0;
+			sparseReads = 0;
+		}
+		
+		if (fullReads >= RESIZE_READS && capacity < BufferPool.MAX_BUFFER_SIZE) {
+			resize(capacity * 2);
+		} else if (sparseReads >= RESIZE_READS && capacity > BufferPool.MIN_BUFFER_SIZE) {
+			resize(capacity / 2);
+		}
+	}
+	
+	/**
+	 * Take buffers of another size for next chunks.
+	 * @param size
+	 */
+	private void resize(int size) {
+		//System.out.println("ChannelTransfer.resize() " + size);
+		bufferSize = size;
+		fullReads = 0;
+		sparseReads = 0;
+	}
+
+}
@@ -0,0 +1,542 @@
+package org.common.download;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.util.*;
+
+/**
+ * This class checks a download against its expected checksum while it is being written,
+ * so the finished file doesn't have to be read again.
+ * CRC32C is kept for every byte range on its own, hashed from the transfer buffer
+ * by the thread writing the range, and range checksums are combined when the download completes.
+ * SHA-256, SHA-1 and MD5 can't be combined, their digest follows the file from its first byte:
+ * chunks written right at that point are hashed from the transfer buffer, bytes that other
+ * segments have already written further ahead are read back from the file (usually still
+ * in the page cache) once the digest reaches them, by a catch-up thread of this download.
+ * Checksum state is saved with the resume journal, so after a restart it continues
+ * from the journal instead of reading back the part already on disk.
+ * Supported algorithms are SHA-256, SHA-1, MD5 and CRC32C.
+ * @author nbabic
+ */
+class ChecksumVerifier {
+	
+	// Supported algorithm names
+	static final String ALGORITHMS[] = { "SHA-256", "SHA-1", "MD5", "CRC32C" };
+	
+	// Size of buffer for reading file back.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final String algorithm;
+	// expected checksum
+	private final byte[] expected;
+	// file the download is written into
+	private final String fileName;
+	// CRC32C of each byte range by start of range, null for SHA and MD5
+	private final TreeMap<Long, RangeChecksum> rangeChecksums;
+	// digest of file from its first byte, null for CRC32C
+	private final ResumableDigest digest;
+	// byte ranges being written, in file order
+	private Segment[] segments;
+	// number of bytes from start of file already hashed
+	private long hashedUpTo;
+	// true while a thread updates the digest, only that thread uses it
+	private boolean hashing;
+	// first read back that failed, reported by verify()
+	private IOException failure;
+	// digest state taken when no thread was hashing, saved with the resume journal
+	private String savedState;
+	// reads back what segments wrote ahead of the hashed point
+	private final Runnable catchUp = new Runnable() {
+		public void run() {
+			catchUp();
+		}
+	};
+	
+	/**
+	 * This class holds CRC32C of one byte range from its start to the bytes written so far.
+	 * Only the thread writing the range updates it, under its lock.
+	 */
+	private static class RangeChecksum {
+		
+		final long start;
+		// end of bytes in checksum
+		long position;
+		final Crc32c crc;
+		
+		RangeChecksum(long start, long position, Crc32c crc) {
+			this.start = start;
+			this.position = position;
+			this.crc = crc;
+		}
+	
+	}
+	
+	/**
+	 * Create verifier for expected checksum given as hex string.
+	 * @param algorithm
+	 * @param expectedHex
+	 * @param fileName
+	 * @throws NoSuchAlgorithmException
+	 */
+	ChecksumVerifier(String algorithm, String expectedHex, String fileName) throws NoSuchAlgorithmException {
+		this.algorithm = normalize(algorithm);
+		this.expected = parseHex(expectedHex);
+		this.fileName = fileName;
+		
+		if (this.algorithm.equals("CRC32C")) {
+			rangeChecksums = new TreeMap<Long, RangeChecksum>();
+			digest = null;
+		} else {
+			rangeChecksums = null;
+			digest = ResumableDigest.getInstance(this.algorithm);
+		}
+	}
+	
+	String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/**
+	 * Set byte ranges that are being written, used to find bytes to read back.
+	 * @param segments
+	 */
+	synchronized void setSegments(Segment[] segments) {
+		this.segments = segments;
+	}
+	
+	/**
+	 * Hash chunk just written at segment's position and move the segment forward.
+	 * CRC32C of the segment's range is updated from the buffer.
+	 * For a digest, chunk right at the hashed point is hashed from its buffer if no other
+	 * thread is hashing, any other chunk is read back later by the catch-up thread.
+	 * Segment is moved under the lock, so reading back never misses a chunk.
+	 * @param segment
+	 * @param chunk buffer holding the chunk from index 0
+	 * @param count
+	 */
+	void written(Segment segment, ByteBuffer chunk, int count) {
+		if (rangeChecksums != null) {
+			writtenInRange(segment, chunk, count);
+			return;
+		}
+		
+		synchronized (this) {
+			if (hashing || segment.getPosition() != hashedUpTo) {
+				segment.advance(count);
+				startCatchUp();
+				return;
+			}
+			hashing = true;
+		}
+		
+		try {
+			chunk.rewind();
+			chunk.limit(count);
+			digest.update(chunk);
+		} finally {
+			synchronized (this) {
+				hashedUpTo += count;
+				segment.advance(count);
+				hashing = false;
+				notifyAll();
+				startCatchUp();
+			}
+		}
+	}
+	
+	/**
+	 * Add chunk to CRC32C of segment's range.
+	 * @param segment
+	 * @param chunk
+	 * @param count
+	 */
+	private void writtenInRange(Segment segment, ByteBuffer chunk, int count) {
+		RangeChecksum range = getRangeChecksum(segment.getStart());
+		synchronized (range) {
+			if (range.position != segment.getPosition()) {
+				// checksum was set after bytes were written, or journal had no checksum of them
+				catchUpRange(range, segment.getPosition());
+			}
+			chunk.rewind();
+			chunk.limit(count);
+			range.crc.update(chunk);
+			range.position += count;
+			segment.advance(count);
+		}
+	}
+	
+	/**
+	 * Get checksum of range starting at byte, created empty if there is none.
+	 * @param start
+	 * @return
+	 */
+	private synchronized RangeChecksum getRangeChecksum(long start) {
+		RangeChecksum range = rangeChecksums.get(start);
+		if (range == null) {
+			range = new RangeChecksum(start, start, new Crc32c());
+			rangeChecksums.put(start, range);
+		}
+		return range;
+	}
+	
+	/**
+	 * Bring checksum of range up to position by reading the file. Called under range's lock.
+	 * @param range
+	 * @param position
+	 */
+	private void catchUpRange(RangeChecksum range, long position) {
+		if (range.position > position) {
+			range.crc.reset();
+			range.position = range.start;
+		}
+		try {
+			readBack(range.position, position, range.crc);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		range.position = position;
+	}
+	
+	/**
+	 * Forget everything hashed so far, download starts from the beginning.
+	 */
+	synchronized void reset() {
+		awaitIdle();
+		hashedUpTo = 0;
+		failure = null;
+		savedState = null;
+		if (digest != null) {
+			digest.reset();
+		} else {
+			rangeChecksums.clear();
+		}
+	}
+	
+	/**
+	 * Continue from checksum state saved in resume journal, positions of its ranges
+	 * are those the download continues from.
+	 * @param journal
+	 */
+	synchronized void restore(ResumeJournal journal) {
+		if (!algorithm.equals(journal.checksum)) {
+			return;
+		}
+		
+		if (rangeChecksums != null) {
+			if (journal.rangeChecksums == null) {
+				return;
+			}
+			for (int i = 0; i < journal.ranges.length; i++) {
+				if (journal.rangeChecksums[i] != -1) {
+					long[] range = journal.ranges[i];
+					rangeChecksums.put(range[0], new RangeChecksum(range[0], range[2], new Crc32c(journal.rangeChecksums[i])));
+				}
+			}
+		} else if (journal.digestState != null) {
+			try {
+				digest.setState(journal.digestState);
+				hashedUpTo = digest.getLength();
+				savedState = journal.digestState;
+			} catch (IllegalArgumentException e) {
+				// damaged state, hashed from the beginning
+				digest.reset();
+			}
+		}
+	}
+	
+	/**
+	 * Put checksum state into resume journal holding positions of the ranges.
+	 * Range positions are moved to where their CRC32C ends, which is never past bytes written.
+	 * Digest state is the last one taken while no thread was hashing.
+	 * @param journal
+	 */
+	void save(ResumeJournal journal) {
+		journal.checksum = algorithm;
+		if (digest != null) {
+			synchronized (this) {
+				if (!hashing) {
+					savedState = digest.getState();
+				}
+				journal.digestState = savedState;
+			}
+			return;
+		}
+		
+		journal.rangeChecksums = new long[journal.ranges.length];
+		for (int i = 0; i < journal.ranges.length; i++) {
+			long[] range = journal.ranges[i];
+			journal.rangeChecksums[i] = -1;
+			RangeChecksum rangeChecksum;
+			synchronized (this) {
+				rangeChecksum = rangeChecksums.get(range[0]);
+			}
+			if (rangeChecksum == null) {
+				continue;
+			}
+			synchronized (rangeChecksum) {
+				if (rangeChecksum.position <= range[1] + 1) {
+					range[2] = rangeChecksum.position;
+					journal.rangeChecksums[i] = rangeChecksum.crc.getValue();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finish checksum of completed file of given size and compare it with the expected one.
+	 * Any part not hashed during the transfer is read from the file.
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	boolean verify(long size) throws IOException {
+		//System.out.println("ChecksumVerifier.verify()");
+		if (rangeChecksums != null) {
+			synchronized (this) {
+				if (failure != null) {
+					throw failure;
+				}
+			}
+			long value = combineRanges(size);
+			byte[] actual = new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+			return MessageDigest.isEqual(expected, actual);
+		}
+		
+		long start;
+		synchronized (this) {
+			awaitIdle();
+			if (failure != null) {
+				throw failure;
+			}
+			hashing = true;
+			start = hashedUpTo;
+		}
+		
+		try {
+			if (start < size) {
+				readBack(start, size, null);
+			}
+			return MessageDigest.isEqual(expected, digest.digest());
+		} finally {
+			synchronized (this) {
+				hashedUpTo = Math.max(start, size);
+				hashing = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Combine CRC32C of ranges into CRC32C of the whole file.
+	 * Bytes no range checksum covers, like a file copied from the cache, are read from the file.
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	private long combineRanges(long size) throws IOException {
+		List<RangeChecksum> ranges;
+		synchronized (this) {
+			ranges = new ArrayList<RangeChecksum>(rangeChecksums.values());
+		}
+		
+		long value = 0;
+		long covered = 0;
+		for (RangeChecksum range : ranges) {
+			synchronized (range) {
+				if (range.start < covered || range.position > size) {
+					// overlaps bytes already combined, left to read back
+					continue;
+				}
+				if (range.start > covered) {
+					value = Crc32c.combine(value, readBack(covered, range.start), range.start - covered);
+				}
+				value = Crc32c.combine(value, range.crc.getValue(), range.position - range.start);
+				covered = range.position;
+			}
+		}
+		if (covered < size) {
+			value = Crc32c.combine(value, readBack(covered, size), size - covered);
+		}
+		return value;
+	}
+	
+	/**
+	 * Get CRC32C of bytes from start to end of file.
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	private long readBack(long start, long end) throws IOException {
+		Crc32c crc = new Crc32c();
+		readBack(start, end, crc);
+		return crc.getValue();
+	}
+	
+	/**
+	 * Wait until no thread is hashing, even if interrupted. Called under the lock.
+	 */
+	private void awaitIdle() {
+		boolean interrupted = false;
+		while (hashing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Start catch-up thread of this download on bytes written ahead of the hashed point,
+	 * if nobody is hashing. Called under the lock.
+	 */
+	private void startCatchUp() {
+		if (!hashing && failure == null && getWrittenEnd() > hashedUpTo) {
+			hashing = true;
+			DownloadThreads.newThread(catchUp).start();
+		}
+	}
+	
+	/**
+	 * Get end of bytes written without a gap from the hashed point. Called under the lock.
+	 * @return
+	 */
+	private long getWrittenEnd() {
+		if (segments == null) {
+			return hashedUpTo;
+		}
+		for (int i = 0; i < segments.length; i++) {
+			Segment segment = segments[i];
+			// segment holding the hashed point, it may have written beyond it
+			if (hashedUpTo >= segment.getStart() && hashedUpTo <= segment.getEnd()) {
+				return Math.max(hashedUpTo, segment.getPosition());
+			}
+		}
+		return hashedUpTo;
+	}
+	
+	/**
+	 * Move hashed point over bytes that segments have already written, on the catch-up thread.
+	 * File is read without the lock, point moves on to the next segment when one is done.
+	 */
+	private void catchUp() {
+		long start;
+		long end;
+		synchronized (this) {
+			start = hashedUpTo;
+			end = getWrittenEnd();
+		}
+		
+		while (true) {
+			try {
+				if (end > start) {
+					readBack(start, end, null);
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					hashing = false;
+					notifyAll();
+				}
+				return;
+			}
+			
+			synchronized (this) {
+				hashedUpTo = end;
+				start = end;
+				end = getWrittenEnd();
+				if (end <= start) {
+					hashing = false;
+					notifyAll();
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Hash bytes from start to end of file.
+	 * @param start
+	 * @param end
+	 * @param crc checksum to update, null for the digest
+	 * @throws IOException
+	 */
+	private void readBack(long start, long end, Crc32c crc) throws IOException {
+		if (end <= start) {
+			return;
+		}
+		
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			byte[] bytes = new byte[(int) Math.min(READ_BUFFER_SIZE, end - start)];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long position = start;
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(bytes.length, end - position));
+				int count = channel.read(buffer, position);
+				if (count == -1) {
+					throw new EOFException("File is shorter than download");
+				}
+				if (crc != null) {
+					crc.update(bytes, 0, count);
+				} else {
+					digest.update(bytes, 0, count);
+				}
+				position += count;
+			}
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Get algorithm name as in ALGORITHMS, also accepts names without dash like sha256.
+	 * @param algorithm
+	 * @return
+	 * @throws NoSuchAlgorithmException
+	 */
+	private static String normalize(String algorithm) throws NoSuchAlgorithmException {
+		String compact = algorithm.replace("-", "").toUpperCase();
+		for (String name : ALGORITHMS) {
+			if (name.replace("-", "").equals(compact)) {
+				return name;
+			}
+		}
+		throw new NoSuchAlgorithmException(algorithm);
+	}
+	
+	/**
+	 * Convert hex string to bytes.
+	 * @param hex
+	 * @return
+	 */
+	private static byte[] parseHex(String hex) {
+		hex = hex.trim();
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Invalid checksum: " + hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high == -1 || low == -1) {
+				throw new IllegalArgumentException("Invalid checksum: " + hex);
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,58 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * This class sends every request over a new connection, closed after the response.
+ * Connections were never closed like this before, it is a fallback for servers 
+ * that handle persistent connections badly, and the baseline for measuring 
+ * what KeepAliveTransport saves. It is slower than KeepAliveTransport for many small files.
+ * @author nbabic
+ */
+public class CloseTransport implements ITransport {
+	
+	// transport shared by all downloads
+	public static final CloseTransport INSTANCE = new CloseTransport();
+	
+	private CloseTransport() {
+	}
+
+	/**
+	 * Open new connection to URL, server is asked to close it after the response.
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public HttpURLConnection open(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Connection", "close");
+		return connection;
+	}
+
+	/**
+	 * Close response body and connection.
+	 * @param connection
+	 * @param stream
+	 */
+	@Override
+	public void release(HttpURLConnection connection, InputStream stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {}
+		}
+		connection.disconnect();
+	}
+	
+	/**
+	 * Get transport name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "Close";
+	}
+
+}
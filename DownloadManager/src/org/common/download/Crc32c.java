@@ -0,0 +1,150 @@
+package org.common.download;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * This class computes CRC-32C (Castagnoli) checksum, 
+ * which is not part of the Java runtime before Java 9.
+ * Checksums of adjacent byte ranges can be combined into the checksum of both,
+ * so ranges downloaded in parallel are hashed on their own.
+ * @author nbabic
+ */
+class Crc32c implements Checksum {
+	
+	// Reversed Castagnoli polynomial.
+	private static final int POLYNOMIAL = 0x82F63B78;
+	
+	// remainder of each byte value
+	private static final int[] TABLE = new int[256];
+	
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+	
+	// current checksum, inverted
+	private int crc = 0xFFFFFFFF;
+	
+	public Crc32c() {
+	}
+	
+	/**
+	 * Continue from checksum of bytes hashed before.
+	 * @param value
+	 */
+	Crc32c(long value) {
+		crc = ~(int) value;
+	}
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int value = crc;
+		for (int i = off; i < off + len; i++) {
+			value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+		}
+		crc = value;
+	}
+
+	/**
+	 * Hash bytes from position to limit of buffer.
+	 * @param buffer
+	 */
+	public void update(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		int value = crc;
+		while (buffer.hasRemaining()) {
+			value = (value >>> 8) ^ TABLE[(value ^ buffer.get()) & 0xFF];
+		}
+		crc = value;
+	}
+
+	@Override
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+	/**
+	 * Get checksum of two adjacent byte ranges from checksums of each,
+	 * the way zlib combines CRC-32: checksum of first range is moved over
+	 * as many zero bits as second range has, by squaring the operator of one zero bit.
+	 * @param crc1 checksum of first range
+	 * @param crc2 checksum of second range
+	 * @param length2 length of second range in bytes
+	 * @return
+	 */
+	static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		
+		// operator for one zero bit, then for two and four
+		int[] odd = new int[32];
+		int[] even = new int[32];
+		odd[0] = POLYNOMIAL;
+		int row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+		
+		// apply operators of one, two, four... zero bytes for bits set in length
+		int value = (int) crc1;
+		long length = length2;
+		do {
+			square(even, odd);
+			if ((length & 1) != 0) {
+				value = times(even, value);
+			}
+			length >>>= 1;
+			if (length == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length & 1) != 0) {
+				value = times(odd, value);
+			}
+			length >>>= 1;
+		} while (length != 0);
+		
+		return (value ^ (int) crc2) & 0xFFFFFFFFL;
+	}
+	
+	private static int times(int[] matrix, int vector) {
+		int sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+	
+	private static void square(int[] square, int[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.common.download;
+
+/**
+ * This class starts the queued download with the earliest deadline first.
+ * Downloads without a deadline are started after all downloads that have one.
+ * @author nbabic
+ */
+public class DeadlinePolicy implements ISchedulingPolicy {
+	
+	// policy shared by all schedulers
+	public static final DeadlinePolicy INSTANCE = new DeadlinePolicy();
+	
+	private DeadlinePolicy() {
+	}
+	
+	/**
+	 * Get deadline, no deadline counts as the latest.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public long getKey(Download download) {
+		long deadline = download.getDeadline();
+		return (deadline == 0) ? Long.MAX_VALUE : deadline;
+	}
+	
+	/**
+	 * Get policy name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "Deadline";
+	}
+
+}
@@ -1,295 +1,1860 @@
-package org.common.download;
-
-import java.io.*;
-import java.io.ObjectInputStream.GetField;
-import java.net.*;
-import java.util.*;
-
-import javax.swing.JFileChooser;
-
-/**
- * This class downloads a file from a URL.
- * Every time when new download is added to the list, 
- * new Download object is created to manage the download process.
- * @author nbabic
- */
-public class Download extends Observable implements IDownload, Runnable {
-	
-	// Max size of download buffer.
-	private static final int MAX_BUFFER_SIZE = 1024;
-	
-	// Status names
-	public static final String STATUSES[] = { "Downloading", "Paused", "Complete", "Cancelled", "Error" };
-	
-	// Status codes
-	public static final int DOWNLOADING = 0;
-	public static final int PAUSED = 1;
-	public static final int COMPLETE = 2;
-	public static final int CANCELLED = 3;
-	public static final int ERROR = 4;
-
-	// download URL
-	private URL url;
-	// size of download in bytes
-	private int size;
-	// number of bytes downloaded
-	private int downloaded;
-	// current status of download
-	private int status;
-	
-	String fileName;
-	JFileChooser fileSave = new JFileChooser();
-	
-	/**
-	 * Pass url into Constructor 
-	 * @param url
-	 */
-	public Download(URL url) {
-		//System.out.println("Download.Download()");
-		this.url = url;
-		size = -1; // initial value, not defined 
-		downloaded = 0;
-		status = DOWNLOADING;
-		
-		//get download filename
-		getDownloadFileName();
-		
-		//start downloading
-		download();
-	}
-
-	private void getDownloadFileName() {
-		//System.out.println("Download.getDownloadFileName() url - " + url);
-		
-		fileSave.setSelectedFile(new File(getFileName(url)));
-		fileSave.showSaveDialog(fileSave);
-		
-		fileName = fileSave.getSelectedFile().toString();
-		//System.out.println("Download.getDownloadFileName() fileName - " + fileName);
-		
-	}
-
-	/**
-	 * Start or resume downloading.
-	 */
-	public void download() {
-		//System.out.println("Download.download()");
-		//separate each download in its own thread
-		Thread thread = new Thread(this);
-		//run
-		thread.start();
-	}
-
-	/**
-	 * Download file
-	 */
-	@Override
-	public void run() {
-		//System.out.println("Download.run()");
-		
-		//remote file to read from
-		RandomAccessFile file = null;
-		//local file to write into
-		InputStream stream = null;
-		
-		try {
-			// Open connection to URL.
-			//cast into HttpURLConnection because only http protocol is supported
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			
-			// Specify what portion of file to download.
-			connection.setRequestProperty("Range", "bytes-" + downloaded + "-");
-			
-			// Connect to server.
-			connection.connect();
-			
-			// Make sure that everything's OK: response code is in the 200 range.
-			// HTTP protocol has a list of codes
-			// response code range of 200 identifies success 
-			//System.out.println("Download.run() connection.getResponseCode() " + connection.getResponseCode());
-			if (connection.getResponseCode() / 100 != 2) {
-				error();
-			}
-			
-			// Check for valid content length.
-			int contentLength = connection.getContentLength();
-			//int contentLength = connection.getContentLength() + downloaded;
-			if (contentLength < 1) {
-				error();
-			}
-			
-			// Set the size for this download if it hasn't been already set.
-			if (size == -1) {
-				size = contentLength;
-				System.out.println("Download.run() size " + size);
-				stateChanged();
-			}
-			
-			// Open file and seek to the end of it.
-			//file = new RandomAccessFile(getFileName(url), "rw");
-			file = new RandomAccessFile(fileName, "rw");
-
-			// start/resume download after last downloaded byte
-			// this way we ensure that if the download is stopped, next time it won't start from the beginning   
-			file.seek(downloaded);
-			
-			stream = connection.getInputStream();
-			stream.skip(downloaded);
-			
-			// loop is repeating until the status is set to DOWNLOADING
-			System.out.println("Download.run() status " + status + ", downloaded - " + downloaded);
-			while (status == DOWNLOADING) {
-				// Size buffer according to how much of the file is left to download.
-				byte buffer[];
-				//if it is bigger than max size, increase to max
-				//else set it to size left to download
-				if (size - downloaded > MAX_BUFFER_SIZE) {
-					buffer = new byte[MAX_BUFFER_SIZE];
-				} else {
-					buffer = new byte[size - downloaded];
-				}
-				//System.out.println("Download.run() buffer.length " + buffer.length);
-				
-				// Read bytes from server into buffer.
-				int count = stream.read(buffer);
-				System.out.println("Download.run() count " + count);
-				
-				//check if download is finished and exit loop
-				if (count == -1) {
-					break;
-				}
-				
-				// Write buffer to file.
-				file.write(buffer, 0, count);
-				downloaded += count;
-				stateChanged();
-			}
-			System.out.println("Download.run() u breaking " + status);
-			// Change status to complete if this point was reached because downloading has finished.
-			if (status == DOWNLOADING) {
-				System.out.println("Download.run() u DOWNLOADING " + status);
-				status = COMPLETE;
-				stateChanged();
-			}
-			
-		} catch (Exception e) {
-			System.out.println("Download.run() Exception");
-			error();
-		} finally {
-			// Close file.
-			if (file != null) {
-				//System.out.println("Download.run() finally");
-				try {
-					file.close();
-					//System.out.println("Download.run() file.close()");
-				} catch (Exception e) {}
-			}
-		}
-		
-		// Close connection to server.
-		if (stream != null) {
-			try {
-				stream.close();
-			} catch (Exception e) {}
-		}
-		
-	}
-
-	/**
-	 * Get file name portion of URL.
-	 * @param url
-	 * @return
-	 */
-	public String getFileName(URL url) {
-		//System.out.println("Download.getFileName() " + url);
-		String fileName = url.getFile();
-		//filename is after last char '/'
-		fileName = fileName.substring(fileName.lastIndexOf("/") + 1);
-		return fileName;
-	}
-	
-	/**
-	 * Get this download's URL.
-	 * @return
-	 */
-	public String getUrl() {
-		//System.out.println("Download.getUrl()");
-		return url.toString();
-	}
-
-	/**
-	 * Get this download's size.
-	 * @return
-	 */
-	public int getSize() {
-		//System.out.println("Download.getSize()");
-		return size;
-	}
-	
-	/**
-	 * Get this download's progress.
-	 * @return
-	 */
-	public float getProgress() {
-		//System.out.println("Download.getProgress()");
-		return ((float) downloaded / size) * 100;
-	}
-	
-	/**
-	 * Get this download's status.
-	 * @return
-	 */
-	public int getStatus() {
-		//System.out.println("Download.getStatus()");
-		return status;
-	}
-	
-	/**
-	 * Pause this download.
-	 */
-	public void pause() {
-		System.out.println("Download.pause()");
-		status = PAUSED;
-		stateChanged();
-	}
-
-	/**
-	 * Resume this download.
-	 */
-	public void resume() {
-		//System.out.println("Download.resume()");
-		status = DOWNLOADING;
-		stateChanged();
-		download();
-	}
-
-	/**
-	 * Cancel this download.
-	 */
-	public void cancel() {
-		//System.out.println("Download.cancel()");
-		status = CANCELLED;
-		stateChanged();
-	}
-
-	/**
-	 * Mark this download as having an error.
-	 */
-	public void error() {
-		//System.out.println("Download.error()");
-		status = ERROR;
-		stateChanged();
-	}
-
-	/**
-	 * Notify observers that this download's status has changed.
-	 */
-	public void stateChanged() {
-		//System.out.println("Download.stateChanged()");
-		//notify about changes
-		setChanged();
-		//notify Observer classes (DownloadsTableModel and Download Manager implement Observer)
-	    notifyObservers();
-	}
-	
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class downloads a file from a URL.
+ * Every time when new download is added to the list, 
+ * new Download object is created to manage the download process.
+ * @author nbabic
+ */
+public class Download extends Observable implements IDownload, Runnable {
+	
+	// Default number of parallel connections for segmented downloads.
+	public static final int DEFAULT_SEGMENT_COUNT = 4;
+	
+	// Smallest byte range worth opening its own connection for.
+	private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+	
+	// Smallest range split off a slow connection for a faster one.
+	private static final int MIN_STEAL_SIZE = 256 * 1024;
+	
+	// Min time between two syncs of the file and saves of the resume journal, in milliseconds.
+	// Can be set with -Ddownload.syncInterval=milliseconds.
+	private static final long CHECKPOINT_INTERVAL = Long.getLong("download.syncInterval", 1000);
+	
+	// Status names
+	public static final String STATUSES[] = { "Downloading", "Paused", "Complete", "Cancelled", "Error", "Queued" };
+	
+	// Status codes
+	public static final int DOWNLOADING = 0;
+	public static final int PAUSED = 1;
+	public static final int COMPLETE = 2;
+	public static final int CANCELLED = 3;
+	public static final int ERROR = 4;
+	public static final int QUEUED = 5;
+	
+	// Output mode names
+	public static final String OUTPUT_MODES[] = { "Channel", "Mapped" };
+	
+	// Output mode codes: positional channel writes on writer threads, or copies into the memory-mapped file
+	public static final int CHANNEL_OUTPUT = 0;
+	public static final int MAPPED_OUTPUT = 1;
+	
+	// Observer argument for progress notifications, status changes are sent without argument.
+	public static final String PROGRESS = "progress";
+
+	// download URL
+	private URL url;
+	// download URL as text, made once because table asks for it on every paint
+	private final String urlText;
+	// size of download in bytes
+	private volatile long size;
+	// number of bytes downloaded
+	private volatile long downloaded;
+	// current status of download, changed only by legal transitions
+	private final AtomicInteger status = new AtomicInteger(DOWNLOADING);
+	// true if user resumed download while its last thread was still stopping
+	private final AtomicBoolean resumePending = new AtomicBoolean();
+	// reason of last error, null if not known
+	private volatile String errorMessage;
+	// true if server accepts byte range requests
+	private boolean acceptRanges;
+	// max number of parallel connections
+	private int segmentCount = DEFAULT_SEGMENT_COUNT;
+	// byte ranges of segmented download, null when downloading over a single connection
+	private Segment[] segments;
+	// sources of the same file, first one is the download URL
+	private final URL[] mirrors;
+	// guards segments while workers take and split them
+	private final Object segmentLock = new Object();
+	// workers of running segmented download
+	private SegmentWorker[] workers;
+	// true once a worker has found the file changed on server
+	private volatile boolean remoteChanged;
+	// thread running this download, interrupted on pause and cancel, at most one at a time
+	private final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+	// server validators used to check that resumed bytes belong to the same file
+	private volatile String etag;
+	private volatile String lastModified;
+	// time of last journal save
+	private volatile long lastCheckpoint;
+	// true while a thread is saving the journal
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+	// bandwidth limit of this download
+	private final TokenBucket rateBucket = new TokenBucket(0);
+	// transport of new downloads
+	private static volatile ITransport defaultTransport = KeepAliveTransport.INSTANCE;
+	// how connections to server are made
+	private volatile ITransport transport = defaultTransport;
+	// output mode of new downloads
+	private static volatile int defaultOutputMode = CHANNEL_OUTPUT;
+	// how bytes are put into the file
+	private volatile int outputMode = defaultOutputMode;
+	// checks file against expected checksum while downloading, null if there is none
+	private volatile ChecksumVerifier verifier;
+	// copy from an earlier download that server may confirm as current, null if there is none
+	private CacheIndex.Entry cached;
+	// guards probed, probing and notModified
+	private final Object probeLock = new Object();
+	// true if HEAD request was sent ahead of the next run
+	private boolean probed;
+	// true while a thread sends the HEAD request, the other caller waits for its answer
+	private boolean probing;
+	// true if server answered that the cached copy is still current
+	private boolean notModified;
+	// user priority, queued downloads with higher priority start first under PriorityPolicy
+	private volatile int priority;
+	// time by which download should be complete in milliseconds since epoch, 0 if there is none
+	private volatile long deadline;
+	// download of the same URL whose file this one gets, null if it transfers on its own
+	private volatile Download leader;
+	// complete file of followed download to copy, null if there is none
+	private String source;
+	// receives leader's progress and status while following it
+	private final Observer leaderObserver = new Observer() {
+		public void update(Observable o, Object arg) {
+			leaderChanged((Download) o, arg);
+		}
+	};
+	
+	// running downloads that passed the disk space check, bytes they have yet to write are promised to them
+	private static final Set<Download> spaceClaims = new HashSet<Download>();
+	
+	// number of last download created, used to tell downloads apart in metrics
+	private static final AtomicInteger lastId = new AtomicInteger();
+	// unique number of this download
+	private final int id = lastId.incrementAndGet();
+	// transfer metrics of this download
+	private final TransferMetrics metrics;
+	// connections waiting to reconnect, woken when segmented download runs out of ranges
+	private final Object retryLock = new Object();
+	
+	// file to save download into
+	String fileName;
+	
+	/**
+	 * Pass url and target file into Constructor.
+	 * File is chosen by the caller, this class doesn't use any graphic interface.
+	 * @param url
+	 * @param fileName
+	 */
+	public Download(URL url, String fileName) {
+		this(new URL[] { url }, fileName);
+	}
+	
+	/**
+	 * Create download of a file published on several mirrors.
+	 * First URL is asked for size and validators, byte ranges are fetched from all of them.
+	 * @param mirrors URLs of the same file
+	 * @param fileName
+	 */
+	public Download(URL[] mirrors, String fileName) {
+		this(mirrors, fileName, (ChecksumVerifier) null);
+	}
+	
+	/**
+	 * Create download of a file that must match expected checksum, given as hex string.
+	 * Supported algorithms are SHA-256, SHA-1, MD5 and CRC32C.
+	 * Checksum is computed while downloading, from the first byte on,
+	 * and download ends in ERROR if it doesn't match.
+	 * @param mirrors URLs of the same file
+	 * @param fileName
+	 * @param algorithm
+	 * @param expected
+	 * @throws NoSuchAlgorithmException
+	 */
+	public Download(URL[] mirrors, String fileName, String algorithm, String expected) throws NoSuchAlgorithmException {
+		this(mirrors, fileName, new ChecksumVerifier(algorithm, expected, fileName));
+	}
+	
+	private Download(URL[] mirrors, String fileName, ChecksumVerifier verifier) {
+		//System.out.println("Download.Download()");
+		if (mirrors.length == 0) {
+			throw new IllegalArgumentException("No download URL");
+		}
+		URL url = mirrors[0];
+		this.mirrors = mirrors.clone();
+		this.url = url;
+		this.urlText = url.toString();
+		this.fileName = fileName;
+		this.metrics = new TransferMetrics(urlText);
+		this.verifier = verifier;
+		size = -1; // initial value, not defined 
+		downloaded = 0;
+		
+		//continue where last run of the application stopped
+		restoreJournal();
+		
+		//start downloading
+		download();
+	}
+
+	/**
+	 * Start or resume downloading.
+	 */
+	public void download() {
+		//System.out.println("Download.download()");
+		//same URL is already being downloaded, wait for that file instead of a second transfer
+		Download current = DownloadCoalescer.getInstance().attach(url, this);
+		if (current != null) {
+			follow(current);
+			return;
+		}
+		//run in its own thread as soon as scheduler has a free slot
+		DownloadScheduler.getInstance().schedule(this);
+	}
+	
+	/**
+	 * Follow download of the same URL, its progress is shown as progress of this download.
+	 * @param current
+	 */
+	private void follow(Download current) {
+		//System.out.println("Download.follow()");
+		synchronized (this) {
+			leader = current;
+		}
+		current.addObserver(leaderObserver);
+		stateChanged();
+		// leader may have finished before observer was added
+		leaderChanged(current, null);
+	}
+	
+	/**
+	 * Stop following leader.
+	 * @return leader that was followed, null if there was none
+	 */
+	private Download unfollow() {
+		Download current;
+		synchronized (this) {
+			current = leader;
+			leader = null;
+		}
+		if (current != null) {
+			current.deleteObserver(leaderObserver);
+		}
+		return current;
+	}
+	
+	/**
+	 * Handle progress or status change of followed download.
+	 * Complete leader's file is copied, if leader stops without a file 
+	 * this download starts its own transfer.
+	 * @param current
+	 * @param arg
+	 */
+	private void leaderChanged(Download current, Object arg) {
+		synchronized (this) {
+			if (leader != current) {
+				return;
+			}
+		}
+		if (PROGRESS.equals(arg)) {
+			setChanged();
+			notifyObservers(PROGRESS);
+			return;
+		}
+		
+		int leaderStatus = current.getStatus();
+		if (leaderStatus == DOWNLOADING || leaderStatus == QUEUED) {
+			if (arg == null) {
+				stateChanged();
+			}
+			return;
+		}
+		
+		// only one caller gets to act on leader's end
+		if (unfollow() != current) {
+			return;
+		}
+		if (leaderStatus == COMPLETE) {
+			// copied in this download's own thread, not in the thread of the leader
+			synchronized (this) {
+				source = current.fileName;
+			}
+			DownloadScheduler.getInstance().schedule(this);
+		} else {
+			download();
+		}
+	}
+	
+	/**
+	 * Mark this download as waiting in scheduler queue.
+	 * Called under the lock of the scheduler before the download is put into the queue,
+	 * so it can't be started before it is marked, scheduler notifies observers after the lock.
+	 * @return false if download was stopped meanwhile and must not be queued
+	 */
+	boolean queued() {
+		//System.out.println("Download.queued()");
+		return moveTo(DOWNLOADING, QUEUED);
+	}
+	
+	/**
+	 * Mark this download as taken out of scheduler queue.
+	 */
+	void started() {
+		//System.out.println("Download.started()");
+		if (moveTo(QUEUED, DOWNLOADING)) {
+			stateChanged();
+		}
+	}
+
+	/**
+	 * Download file.
+	 * Only one thread runs a download at a time, thread started for a run 
+	 * that was paused or is already running elsewhere leaves right away.
+	 */
+	@Override
+	public void run() {
+		//System.out.println("Download.run()");
+		if (!worker.compareAndSet(null, Thread.currentThread())) {
+			return;
+		}
+		try {
+			if (getStatus() == DOWNLOADING) {
+				runWorker();
+			}
+		} finally {
+			worker.set(null);
+			// clear interrupt from pause or cancel, thread may be reused
+			Thread.interrupted();
+			// user resumed while this thread was stopping, next run starts now that it is gone
+			if (resumePending.getAndSet(false)) {
+				restart();
+			}
+		}
+	}
+	
+	/**
+	 * Run transfer in the thread that holds this download.
+	 */
+	private void runWorker() {
+		metrics.started();
+		MetricsRegistry.getInstance().register(metrics, id);
+		try {
+			transfer();
+		} finally {
+			MetricsRegistry.getInstance().unregister(metrics);
+			metrics.finished();
+			releaseSpace();
+			// keep journal only while there is something left to resume
+			int current = getStatus();
+			if (current == COMPLETE || current == CANCELLED) {
+				ResumeJournal.delete(ResumeJournal.getFile(fileName));
+			} else {
+				checkpoint();
+			}
+		}
+	}
+	
+	/**
+	 * Download file over one or more connections.
+	 */
+	private void transfer() {
+		// followed download has finished, its file only needs a local copy
+		String path;
+		synchronized (this) {
+			path = source;
+			source = null;
+		}
+		if (path != null) {
+			finishFromCopy(path);
+			return;
+		}
+		
+		// second pass only if remote file changed under resumed segments
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass > 0) {
+				metrics.retried();
+			}
+			
+			// Ask server for size and range support before the first transfer, unless prober did already.
+			if (probeOnce(true)) {
+				finishFromCache();
+				return;
+			}
+			
+			// Split file into byte ranges if server allows it.
+			if (segments == null && canSegment()) {
+				createSegments();
+			}
+			
+			if (segments == null) {
+				runSingle();
+				return;
+			}
+			
+			if (!runSegmented()) {
+				return;
+			}
+			
+			// Remote file changed since the ranges were fetched, start from the beginning.
+			reset();
+		}
+		error("Remote file changed during download");
+	}
+	
+	/**
+	 * Forget all progress, download starts from the beginning.
+	 */
+	private void reset() {
+		//System.out.println("Download.reset()");
+		synchronized (this) {
+			downloaded = 0;
+		}
+		if (verifier != null) {
+			verifier.reset();
+		}
+		size = -1;
+		segments = null;
+		acceptRanges = false;
+		etag = null;
+		lastModified = null;
+		ResumeJournal.delete(ResumeJournal.getFile(fileName));
+		stateChanged();
+	}
+	
+	/**
+	 * Send HEAD request for a queued download, so its size is known before it starts.
+	 * Answer is kept for the next run, which doesn't send the request again.
+	 * @return true if size is known now
+	 */
+	boolean probeAhead() {
+		//System.out.println("Download.probeAhead()");
+		probeOnce(false);
+		return size != -1;
+	}
+	
+	/**
+	 * Send HEAD request unless it was sent ahead of this run.
+	 * Only one request is sent when prober and run get here at the same time,
+	 * the request is sent outside the lock and the other caller waits for it interruptibly.
+	 * @param consume true when called by the run, the next run sends a new request
+	 * @return true if server answered that the cached copy is still current
+	 */
+	private boolean probeOnce(boolean consume) {
+		boolean send;
+		synchronized (probeLock) {
+			while (probing) {
+				try {
+					probeLock.wait();
+				} catch (InterruptedException e) {
+					// paused or cancelled while the prober waits for the server
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			send = !probed;
+			if (send) {
+				probed = true;
+				probing = true;
+				// File downloaded before may still be current, server is asked to confirm it instead of sending it.
+				cached = (size == -1 && downloaded == 0) ? CacheIndex.getInstance().get(urlText) : null;
+			}
+		}
+		
+		if (send) {
+			boolean answer = false;
+			try {
+				answer = size == -1 && probe();
+			} finally {
+				synchronized (probeLock) {
+					notModified = answer;
+					probing = false;
+					probeLock.notifyAll();
+				}
+			}
+		}
+		
+		synchronized (probeLock) {
+			boolean current = notModified;
+			if (consume) {
+				probed = false;
+				notModified = false;
+			}
+			return current;
+		}
+	}
+	
+	/**
+	 * Send HEAD request to find out file size and whether server accepts byte ranges.
+	 * Failed probe is not an error, download falls back to a single connection.
+	 * @return true if server answered that the cached copy is still current
+	 */
+	private boolean probe() {
+		//System.out.println("Download.probe()");
+		HttpURLConnection connection = null;
+		try {
+			connection = open(url);
+			connection.setRequestMethod("HEAD");
+			setConditional(connection);
+			long started = System.nanoTime();
+			connection.connect();
+			metrics.connected(System.nanoTime() - started);
+			
+			int responseCode = connection.getResponseCode();
+			metrics.firstByte(System.nanoTime() - started);
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return cached != null;
+			}
+			if (responseCode / 100 != 2) {
+				return false;
+			}
+			
+			long contentLength = getContentLength(connection);
+			if (contentLength < 1) {
+				return false;
+			}
+			
+			size = contentLength;
+			acceptRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+			readValidators(connection);
+			stateChanged();
+		} catch (IOException e) {
+			// ignore, size will be read from GET response
+		} finally {
+			if (connection != null) {
+				transport.release(connection, null);
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Ask server to answer 304 Not Modified instead of sending the file 
+	 * if cached copy is still current.
+	 * @param connection
+	 */
+	private void setConditional(HttpURLConnection connection) {
+		if (cached == null) {
+			return;
+		}
+		if (cached.etag != null) {
+			connection.setRequestProperty("If-None-Match", cached.etag);
+		}
+		if (cached.lastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+		}
+	}
+	
+	/**
+	 * Complete download from cached copy, server has confirmed it is current.
+	 * Copy is made only if cached file is not the target file itself.
+	 */
+	private void finishFromCache() {
+		//System.out.println("Download.finishFromCache()");
+		CacheIndex.Entry entry = cached;
+		etag = entry.etag;
+		lastModified = entry.lastModified;
+		finishFromCopy(entry.path);
+	}
+	
+	/**
+	 * Complete download with a copy of a local file that has the same content.
+	 * No copy is made if that file is the target file itself.
+	 * @param path
+	 */
+	private void finishFromCopy(String path) {
+		//System.out.println("Download.finishFromCopy()");
+		File from = new File(path);
+		try {
+			File target = new File(fileName);
+			if (!from.getCanonicalFile().equals(target.getCanonicalFile())) {
+				copyFile(from, target);
+			}
+		} catch (IOException e) {
+			error(e.getMessage());
+			return;
+		}
+		
+		// bytes on disk are new, checksum is computed from the copy
+		if (verifier != null) {
+			verifier.reset();
+		}
+		segments = null;
+		size = from.length();
+		synchronized (this) {
+			downloaded = size;
+		}
+		if (getStatus() == DOWNLOADING) {
+			complete();
+		}
+	}
+	
+	/**
+	 * Copy local file, kernel moves the bytes where it can.
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	private static void copyFile(File source, File target) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			RandomAccessFile out = new RandomAccessFile(target, "rw");
+			try {
+				FileChannel from = in.getChannel();
+				FileChannel to = out.getChannel();
+				long length = from.size();
+				out.setLength(length);
+				long position = 0;
+				while (position < length) {
+					position += from.transferTo(position, length - position, to.position(position));
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Check if this download can be split into byte ranges.
+	 * @return
+	 */
+	private boolean canSegment() {
+		return acceptRanges && downloaded == 0 && getConnectionCount() > 1 
+				&& size / MIN_SEGMENT_SIZE >= 2;
+	}
+	
+	/**
+	 * Get number of parallel connections, at least one for every mirror.
+	 * @return
+	 */
+	private int getConnectionCount() {
+		return Math.max(segmentCount, mirrors.length);
+	}
+	
+	/**
+	 * Split file into equal byte ranges, one for each connection.
+	 */
+	private void createSegments() {
+		//System.out.println("Download.createSegments()");
+		int count = (int) Math.min(getConnectionCount(), size / MIN_SEGMENT_SIZE);
+		long length = size / count;
+		
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			long start = i * length;
+			// last segment takes the remainder
+			long end = (i == count - 1) ? size - 1 : start + length - 1;
+			segments[i] = new Segment(start, end);
+		}
+	}
+	
+	/**
+	 * Download all unfinished segments over parallel connections
+	 * and wait for them to finish. Connections are spread over the mirrors, 
+	 * each takes ranges until none are left.
+	 * @return true if server has a different file than the one segments were started on
+	 */
+	private boolean runSegmented() {
+		//System.out.println("Download.runSegmented()");
+		
+		// Check disk space and size the file before any range is fetched.
+		if (!preallocate()) {
+			return false;
+		}
+		
+		if (verifier != null) {
+			verifier.setSegments(segments);
+		}
+		
+		// never more connections than ranges worth their own connection
+		int count = (int) Math.max(1, Math.min(getConnectionCount(), size / MIN_SEGMENT_SIZE));
+		Thread[] threads = new Thread[count];
+		synchronized (segmentLock) {
+			remoteChanged = false;
+			workers = new SegmentWorker[count];
+			for (int i = 0; i < count; i++) {
+				// validators belong to the first URL, mirrors are checked by size
+				int mirror = i % mirrors.length;
+				workers[i] = new SegmentWorker(this, transport, mirrors[mirror], fileName, 
+						(mirror == 0) ? getValidator() : null);
+			}
+		}
+		
+		for (int i = 0; i < count; i++) {
+			threads[i] = DownloadThreads.newThread(workers[i]);
+			threads[i].start();
+		}
+		
+		try {
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		} catch (InterruptedException e) {
+			// paused or cancelled, stop segment connections blocked in read
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].interrupt();
+			}
+			// segment threads are part of this run, none may write after it ends
+			joinAll(threads);
+			Thread.currentThread().interrupt();
+		}
+		
+		// failed reads after pause or cancel are expected, not errors
+		int current = getStatus();
+		if (remoteChanged && current == DOWNLOADING) {
+			return true;
+		} else if (!isSegmentsComplete() && current == DOWNLOADING) {
+			// every source failed before all ranges were downloaded
+			error();
+		} else if (current == DOWNLOADING) {
+			// all segments finished while downloading
+			complete();
+		}
+		return false;
+	}
+	
+	/**
+	 * Wait until all threads have ended, interrupts don't end the wait.
+	 * @param threads
+	 */
+	private static void joinAll(Thread[] threads) {
+		boolean interrupted = false;
+		for (int i = 0; i < threads.length; i++) {
+			while (threads[i].isAlive()) {
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Give worker its next range: a range no worker is downloading, 
+	 * or upper half of the range that will take longest to finish at its worker's speed.
+	 * @param worker
+	 * @return segment or null if there is nothing left worth a connection
+	 */
+	Segment nextSegment(SegmentWorker worker) {
+		synchronized (segmentLock) {
+			worker.setSegment(null);
+			if (remoteChanged) {
+				return null;
+			}
+			
+			// ranges not started yet, or given back by a failed source
+			for (Segment segment : segments) {
+				if (!segment.isComplete() && !isTaken(segment)) {
+					worker.setSegment(segment);
+					return segment;
+				}
+			}
+			
+			// steal from the connection that is furthest from finishing
+			Segment slowest = null;
+			double longest = 0;
+			for (SegmentWorker other : workers) {
+				Segment segment = other.getSegment();
+				if (segment == null) {
+					continue;
+				}
+				double time = segment.getRemaining() / Math.max(1, other.getRate());
+				if (time > longest) {
+					longest = time;
+					slowest = segment;
+				}
+			}
+			Segment stolen = (slowest != null) ? slowest.split(MIN_STEAL_SIZE) : null;
+			if (stolen == null) {
+				// workers waiting to reconnect have nothing left to wait for
+				synchronized (retryLock) {
+					retryLock.notifyAll();
+				}
+				return null;
+			}
+			
+			// new range goes right after the one it was split from, segments stay in file order
+			Segment[] grown = new Segment[segments.length + 1];
+			int index = Arrays.asList(segments).indexOf(slowest) + 1;
+			System.arraycopy(segments, 0, grown, 0, index);
+			grown[index] = stolen;
+			System.arraycopy(segments, index, grown, index + 1, segments.length - index);
+			segments = grown;
+			if (verifier != null) {
+				verifier.setSegments(grown);
+			}
+			
+			worker.setSegment(stolen);
+			return stolen;
+		}
+	}
+	
+	/**
+	 * Take range back from a worker that stopped, so another worker can finish it.
+	 * @param worker
+	 */
+	void releaseSegment(SegmentWorker worker) {
+		synchronized (segmentLock) {
+			worker.setSegment(null);
+			if (worker.isRemoteChanged()) {
+				remoteChanged = true;
+			}
+		}
+	}
+	
+	/**
+	 * Check if a worker is downloading segment, called under segment lock.
+	 * @param segment
+	 * @return
+	 */
+	private boolean isTaken(Segment segment) {
+		for (SegmentWorker worker : workers) {
+			if (worker.getSegment() == segment) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check if all segments are downloaded.
+	 * @return
+	 */
+	private boolean isSegmentsComplete() {
+		synchronized (segmentLock) {
+			for (Segment segment : segments) {
+				if (!segment.isComplete()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Download file over a single connection.
+	 * Connection that fails or stalls is opened again, 
+	 * transfer continues from the last byte written.
+	 */
+	private void runSingle() {
+		//System.out.println("Download.runSingle()");
+		// reconnects since the connection last made progress
+		int attempt = 0;
+		while (getStatus() == DOWNLOADING) {
+			long before = downloaded;
+			try {
+				fetchSingle();
+				return;
+			} catch (IOException e) {
+				// read interrupted by pause or cancel is not an error
+				if (getStatus() != DOWNLOADING) {
+					return;
+				}
+				if (downloaded > before) {
+					attempt = 0;
+				}
+				if (!retryAfter(e, attempt++)) {
+					if (getStatus() == DOWNLOADING) {
+						error(e.getMessage());
+					}
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Make one request for what is left of the file and copy the response into it.
+	 * @throws IOException if connection failed and may be opened again
+	 */
+	private void fetchSingle() throws IOException {
+		//remote file to read from
+		RandomAccessFile file = null;
+		//local file to write into
+		InputStream stream = null;
+		//connection to server
+		HttpURLConnection connection = null;
+		
+		try {
+			// Open connection to URL.
+			//HttpURLConnection because only http and https protocols are supported
+			connection = open(url);
+			
+			// Specify what portion of file to download.
+			// If-Range makes server send the whole file instead if it has changed since.
+			if (downloaded == 0) {
+				setConditional(connection);
+			} else {
+				connection.setRequestProperty("Range", "bytes=" + downloaded + "-");
+				String validator = getValidator();
+				if (validator != null) {
+					connection.setRequestProperty("If-Range", validator);
+				}
+			}
+			
+			// Connect to server.
+			long started = System.nanoTime();
+			connection.connect();
+			metrics.connected(System.nanoTime() - started);
+			
+			// Make sure that everything's OK: response code is in the 200 range.
+			// HTTP protocol has a list of codes
+			// response code range of 200 identifies success 
+			//System.out.println("Download.run() connection.getResponseCode() " + connection.getResponseCode());
+			int responseCode = connection.getResponseCode();
+			metrics.firstByte(System.nanoTime() - started);
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				transport.release(connection, null);
+				connection = null;
+				finishFromCache();
+				return;
+			}
+			if (responseCode / 100 != 2) {
+				if (RetryPolicy.isRetryable(responseCode)) {
+					throw new IOException("Server returned HTTP " + responseCode);
+				}
+				error("Server returned HTTP " + responseCode);
+				return;
+			}
+			
+			// Anything but 206 Partial Content is the whole file, start from the beginning.
+			if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+				if (downloaded > 0) {
+					synchronized (this) {
+						downloaded = 0;
+					}
+					size = -1;
+					if (verifier != null) {
+						verifier.reset();
+					}
+				}
+				readValidators(connection);
+			}
+			
+			// Check for valid content length.
+			long contentLength = getContentLength(connection);
+			//int contentLength = connection.getContentLength() + downloaded;
+			if (contentLength < 1) {
+				error("Server sent no content length");
+				return;
+			}
+			
+			// Set the size for this download if it hasn't been already set.
+			if (size == -1) {
+				size = contentLength;
+				//System.out.println("Download.run() size " + size);
+				stateChanged();
+			}
+			
+			// Open file, writes start after last downloaded byte
+			// this way we ensure that if the download is stopped, next time it won't start from the beginning   
+			//file = new RandomAccessFile(getFileName(url), "rw");
+			file = new RandomAccessFile(fileName, "rw");
+			
+			// Check disk space and size the file before reading the body.
+			if (getStatus() == DOWNLOADING && !preallocate(file)) {
+				return;
+			}
+			
+			stream = connection.getInputStream();
+			
+			// copy until the end of file or until status is no longer DOWNLOADING
+			//System.out.println("Download.run() status " + status + ", downloaded - " + downloaded);
+			// whole file as one range, first part may be on disk already
+			Segment segment = new Segment(0, size - 1, downloaded);
+			if (verifier != null) {
+				verifier.setSegments(new Segment[] { segment });
+			}
+			
+			ChannelTransfer transfer = new ChannelTransfer(this, stream, file);
+			boolean finished;
+			try {
+				finished = transfer.copy(segment);
+			} finally {
+				transfer.close();
+			}
+			
+			// Connection closed before the whole file arrived.
+			if (!finished && getStatus() == DOWNLOADING) {
+				throw new EOFException("Connection closed after " + downloaded + " of " + size + " bytes");
+			}
+			
+			//System.out.println("Download.run() u breaking " + status);
+			// Change status to complete if this point was reached because downloading has finished.
+			if (getStatus() == DOWNLOADING) {
+				//System.out.println("Download.run() u DOWNLOADING " + status);
+				complete();
+			}
+			
+		} catch (IOException e) {
+			// failed or stalled connection is not kept for the next request
+			if (connection != null) {
+				connection.disconnect();
+				connection = null;
+			}
+			throw e;
+		} finally {
+			// Close file.
+			if (file != null) {
+				//System.out.println("Download.run() finally");
+				try {
+					file.close();
+					//System.out.println("Download.run() file.close()");
+				} catch (Exception e) {}
+			}
+			// Close connection to server, or keep it for the next request.
+			if (connection != null) {
+				transport.release(connection, stream);
+			}
+		}
+	}
+	
+	/**
+	 * Open connection to a source of this download with connect and read timeouts set, 
+	 * so a server that stops answering doesn't block a thread forever.
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 */
+	HttpURLConnection open(URL source) throws IOException {
+		HttpURLConnection connection = transport.open(source);
+		connection.setConnectTimeout(RetryPolicy.CONNECT_TIMEOUT);
+		connection.setReadTimeout(RetryPolicy.READ_TIMEOUT);
+		return connection;
+	}
+	
+	/**
+	 * Record failed connection and wait before it is opened again.
+	 * Connection gives up after RetryPolicy.MAX_RETRIES reconnects in a row without progress.
+	 * Wait ends early when a segmented download has no ranges left to give out.
+	 * @param e cause of failure
+	 * @param attempt number of reconnects since the connection last made progress, from 0
+	 * @return false if connection should give up or download is no longer running
+	 */
+	boolean retryAfter(IOException e, int attempt) {
+		//System.out.println("Download.retryAfter()");
+		if (e instanceof SocketTimeoutException || e instanceof StalledException) {
+			metrics.stalled();
+		}
+		if (attempt >= RetryPolicy.MAX_RETRIES) {
+			metrics.event("Giving up after " + attempt + " retries: " + e);
+			return false;
+		}
+		
+		long delay = RetryPolicy.getDelay(attempt);
+		metrics.retried();
+		metrics.event("Reconnecting in " + delay + " ms: " + e);
+		try {
+			synchronized (retryLock) {
+				retryLock.wait(delay);
+			}
+		} catch (InterruptedException ie) {
+			// paused or cancelled while waiting
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return getStatus() == DOWNLOADING;
+	}
+
+	/**
+	 * Mark download as complete, or as error if file doesn't match expected checksum.
+	 */
+	private void complete() {
+		//System.out.println("Download.complete()");
+		ChecksumVerifier current = verifier;
+		if (current != null) {
+			boolean matches;
+			try {
+				matches = current.verify(size);
+			} catch (IOException e) {
+				error(e.getMessage());
+				return;
+			}
+			if (!matches) {
+				error(current.getAlgorithm() + " checksum mismatch");
+				// bytes on disk are wrong, resume must start from the beginning
+				reset();
+				return;
+			}
+		}
+		// paused or cancelled at the last moment, status is left as user set it
+		if (!moveTo(DOWNLOADING, COMPLETE)) {
+			return;
+		}
+		remember();
+		stateChanged();
+	}
+	
+	/**
+	 * Add finished file to cache index, so next download of the same URL 
+	 * can be skipped if server has not changed it.
+	 */
+	private void remember() {
+		if (etag == null && lastModified == null) {
+			return;
+		}
+		CacheIndex.getInstance().put(new CacheIndex.Entry(urlText, etag, lastModified, size, 
+				new File(fileName).getAbsolutePath()));
+	}
+	
+	/**
+	 * Read Content-Length header as long, so files over 2 GB are supported.
+	 * Returns -1 if header is missing or invalid.
+	 * @param connection
+	 * @return
+	 */
+	static long getContentLength(URLConnection connection) {
+		String value = connection.getHeaderField("Content-Length");
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Remember server validators of the file being downloaded.
+	 * @param connection
+	 */
+	private void readValidators(URLConnection connection) {
+		etag = connection.getHeaderField("ETag");
+		lastModified = connection.getHeaderField("Last-Modified");
+	}
+	
+	/**
+	 * Get value for If-Range header. Weak ETags can't be used there, Last-Modified is used instead.
+	 * @return validator or null if server sent none
+	 */
+	private String getValidator() {
+		String tag = etag;
+		if (tag != null && !tag.startsWith("W/")) {
+			return tag;
+		}
+		return lastModified;
+	}
+	
+	/**
+	 * Load resume journal left by a previous run and continue from its positions.
+	 * Journal is ignored if it belongs to another URL or the target file is gone.
+	 */
+	private void restoreJournal() {
+		//System.out.println("Download.restoreJournal()");
+		ResumeJournal journal = ResumeJournal.load(ResumeJournal.getFile(fileName));
+		if (journal == null || !journal.url.equals(urlText) || !new File(fileName).isFile()) {
+			return;
+		}
+		
+		size = journal.size;
+		etag = journal.etag;
+		lastModified = journal.lastModified;
+		
+		long done = 0;
+		if (journal.ranges.length > 1) {
+			// segmented download, restore every range
+			segments = new Segment[journal.ranges.length];
+			for (int i = 0; i < segments.length; i++) {
+				long[] range = journal.ranges[i];
+				segments[i] = new Segment(range[0], range[1], range[2]);
+				done += range[2] - range[0];
+			}
+		} else if (journal.ranges.length == 1) {
+			done = journal.ranges[0][2];
+		}
+		downloaded = done;
+		
+		if (verifier != null) {
+			verifier.restore(journal);
+		}
+	}
+	
+	/**
+	 * Save resume journal if last save was long enough ago.
+	 * Called from writer threads after every chunk, only one thread saves at a time.
+	 */
+	private void checkpointIfDue() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheckpoint >= CHECKPOINT_INTERVAL && checkpointing.compareAndSet(false, true)) {
+			try {
+				lastCheckpoint = now;
+				checkpoint();
+			} finally {
+				checkpointing.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Save positions of this download to resume journal.
+	 * Positions only move after bytes are written, and file is synced to disk after 
+	 * they are taken, so journal never claims more than is durably in the file.
+	 */
+	private void checkpoint() {
+		//System.out.println("Download.checkpoint()");
+		if (size < 1) {
+			return;
+		}
+		
+		ResumeJournal journal = new ResumeJournal();
+		journal.url = urlText;
+		journal.size = size;
+		journal.etag = etag;
+		journal.lastModified = lastModified;
+		
+		// ranges and their ends change together when a range is split
+		synchronized (segmentLock) {
+			Segment[] current = segments;
+			if (current != null) {
+				journal.ranges = new long[current.length][];
+				for (int i = 0; i < current.length; i++) {
+					journal.ranges[i] = new long[] { current[i].getStart(), current[i].getEnd(), current[i].getPosition() };
+				}
+			} else {
+				journal.ranges = new long[][] { { 0, size - 1, downloaded } };
+			}
+		}
+		// checksum state at the positions, before the file is synced
+		ChecksumVerifier current = verifier;
+		if (current != null) {
+			current.save(journal);
+		}
+		
+		try {
+			sync();
+			journal.save(ResumeJournal.getFile(fileName));
+		} catch (IOException e) {
+			// journal is only a shortcut, download itself is not affected
+		}
+	}
+	
+	/**
+	 * Force bytes written to target file out to disk.
+	 * @throws IOException
+	 */
+	private void sync() throws IOException {
+		if (!new File(fileName).exists()) {
+			return;
+		}
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try {
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Open target file and preallocate it.
+	 * @return false if file could not be preallocated, download is marked as error
+	 */
+	private boolean preallocate() {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "rw");
+			return preallocate(file);
+		} catch (IOException e) {
+			error(e.getMessage());
+			return false;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (Exception e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Check free disk space and set target file to its final size before any byte is fetched.
+	 * Setting the length only extends the file sparsely on most file systems (ext4, xfs, NTFS),
+	 * no blocks are reserved, so this is a size check and not a real allocation:
+	 * segments can write at their offsets, and missing space is reported up front.
+	 * Space still to be written by other running downloads counts as taken,
+	 * so downloads started together can't all pass the check on the same free space.
+	 * @param file
+	 * @return false if there is not enough disk space, download is marked as error
+	 * @throws IOException
+	 */
+	private boolean preallocate(RandomAccessFile file) throws IOException {
+		//System.out.println("Download.preallocate()");
+		if (size < 1) {
+			return true;
+		}
+		
+		// Check free space on target disk, other running downloads on any disk are counted conservatively.
+		File parent = new File(fileName).getAbsoluteFile().getParentFile();
+		long usable = (parent != null) ? parent.getUsableSpace() : 0;
+		long needed = getUnwritten();
+		long promised = 0;
+		synchronized (spaceClaims) {
+			for (Download other : spaceClaims) {
+				if (other != this) {
+					promised += other.getUnwritten();
+				}
+			}
+			if (usable == 0 || needed <= usable - promised) {
+				spaceClaims.add(this);
+				promised = -1;
+			}
+		}
+		if (promised != -1) {
+			error("Not enough disk space, " + needed + " bytes needed, " + usable + " available, " 
+					+ promised + " promised to other downloads");
+			return false;
+		}
+		
+		// file may also be shrinking after remote change
+		if (file.length() != size) {
+			file.setLength(size);
+		}
+		return true;
+	}
+	
+	/**
+	 * Get number of bytes this download has yet to write.
+	 * @return
+	 */
+	private long getUnwritten() {
+		long total = size;
+		return (total < 1) ? 0 : Math.max(0, total - downloaded);
+	}
+	
+	/**
+	 * Give up disk space promised to this download when its run ends.
+	 */
+	private void releaseSpace() {
+		synchronized (spaceClaims) {
+			spaceClaims.remove(this);
+		}
+	}
+	
+	/**
+	 * Add bytes written to file to the download progress.
+	 * Every observer is notified, each one collects progress and shows it at its own rate,
+	 * so a fast download doesn't flood the window, and one observer never hides it from another.
+	 * @param count
+	 */
+	void addProgress(int count) {
+		synchronized (this) {
+			downloaded += count;
+		}
+		metrics.transferred(count);
+		setChanged();
+		notifyObservers(PROGRESS);
+		checkpointIfDue();
+	}
+	
+	/**
+	 * Get file name portion of URL.
+	 * @param url
+	 * @return
+	 */
+	public String getFileName(URL url) {
+		//System.out.println("Download.getFileName() " + url);
+		return fileNameOf(url);
+	}
+	
+	/**
+	 * Get file name portion of URL, without creating a download.
+	 * @param url
+	 * @return
+	 */
+	public static String fileNameOf(URL url) {
+		String fileName = url.getPath();
+		//filename is after last char '/'
+		fileName = fileName.substring(fileName.lastIndexOf("/") + 1);
+		return fileName;
+	}
+	
+	/**
+	 * Get file this download is saved into.
+	 * @return
+	 */
+	public String getTargetFileName() {
+		//System.out.println("Download.getTargetFileName()");
+		return fileName;
+	}
+	
+	/**
+	 * Get this download's URL.
+	 * @return
+	 */
+	public String getUrl() {
+		//System.out.println("Download.getUrl()");
+		return urlText;
+	}
+
+	/**
+	 * Get sources of this download, first one is the download URL.
+	 * @return
+	 */
+	public URL[] getMirrors() {
+		return mirrors.clone();
+	}
+	
+	/**
+	 * Get this download's size.
+	 * @return
+	 */
+	public long getSize() {
+		//System.out.println("Download.getSize()");
+		Download current = leader;
+		return (current != null) ? current.getSize() : size;
+	}
+	
+	/**
+	 * Get number of bytes downloaded.
+	 * @return
+	 */
+	public long getDownloaded() {
+		//System.out.println("Download.getDownloaded()");
+		Download current = leader;
+		return (current != null) ? current.getDownloaded() : downloaded;
+	}
+	
+	/**
+	 * Get max number of parallel connections.
+	 * @return
+	 */
+	public int getSegmentCount() {
+		//System.out.println("Download.getSegmentCount()");
+		return segmentCount;
+	}
+	
+	/**
+	 * Set max number of parallel connections.
+	 * Takes effect only before the transfer is split into segments.
+	 * @param segmentCount
+	 */
+	public void setSegmentCount(int segmentCount) {
+		//System.out.println("Download.setSegmentCount()");
+		this.segmentCount = segmentCount;
+	}
+	
+	/**
+	 * Get user priority of this download.
+	 * @return
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Set user priority of this download, higher priority starts first under PriorityPolicy.
+	 * @param priority
+	 */
+	public void setPriority(int priority) {
+		//System.out.println("Download.setPriority() " + priority);
+		this.priority = priority;
+		DownloadScheduler.getInstance().reorder();
+	}
+	
+	/**
+	 * Get time by which download should be complete.
+	 * @return milliseconds since epoch, 0 if there is no deadline
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	/**
+	 * Set time by which download should be complete, earlier deadline starts first under DeadlinePolicy.
+	 * @param deadline milliseconds since epoch, 0 for no deadline
+	 */
+	public void setDeadline(long deadline) {
+		//System.out.println("Download.setDeadline() " + deadline);
+		this.deadline = deadline;
+		DownloadScheduler.getInstance().reorder();
+	}
+	
+	/**
+	 * Get bandwidth limit of this download in bytes per second, 0 for unlimited.
+	 * @return
+	 */
+	public long getRateLimit() {
+		//System.out.println("Download.getRateLimit()");
+		return rateBucket.getRate();
+	}
+	
+	/**
+	 * Set bandwidth limit of this download in bytes per second, 0 for unlimited.
+	 * Takes effect right away, also while downloading.
+	 * @param rate
+	 */
+	public void setRateLimit(long rate) {
+		//System.out.println("Download.setRateLimit() " + rate);
+		rateBucket.setRate(rate);
+	}
+	
+	/**
+	 * Get transport used by new downloads.
+	 * @return
+	 */
+	public static ITransport getDefaultTransport() {
+		return defaultTransport;
+	}
+	
+	/**
+	 * Set transport used by new downloads.
+	 * @param transport
+	 */
+	public static void setDefaultTransport(ITransport transport) {
+		defaultTransport = transport;
+	}
+	
+	/**
+	 * Get output mode of new downloads.
+	 * @return
+	 */
+	public static int getDefaultOutputMode() {
+		return defaultOutputMode;
+	}
+	
+	/**
+	 * Set output mode of new downloads.
+	 * @param mode CHANNEL_OUTPUT or MAPPED_OUTPUT
+	 */
+	public static void setDefaultOutputMode(int mode) {
+		defaultOutputMode = mode;
+	}
+	
+	/**
+	 * Get how bytes are put into the file.
+	 * @return CHANNEL_OUTPUT or MAPPED_OUTPUT
+	 */
+	public int getOutputMode() {
+		return outputMode;
+	}
+	
+	/**
+	 * Set how bytes are put into the file, takes effect with the next connection.
+	 * @param mode CHANNEL_OUTPUT or MAPPED_OUTPUT
+	 */
+	public void setOutputMode(int mode) {
+		//System.out.println("Download.setOutputMode() " + OUTPUT_MODES[mode]);
+		this.outputMode = mode;
+	}
+	
+	/**
+	 * Get transport used for connections to server.
+	 * @return
+	 */
+	public ITransport getTransport() {
+		//System.out.println("Download.getTransport()");
+		return transport;
+	}
+	
+	/**
+	 * Set transport used for connections to server.
+	 * Takes effect with the next connection.
+	 * @param transport
+	 */
+	public void setTransport(ITransport transport) {
+		//System.out.println("Download.setTransport() " + transport.getName());
+		this.transport = transport;
+	}
+	
+	/**
+	 * Set checksum the downloaded file must match, given as hex string.
+	 * Supported algorithms are SHA-256, SHA-1, MD5 and CRC32C.
+	 * Checksum is computed while downloading, download ends in ERROR if it doesn't match.
+	 * Bytes written before it is set are read back from the file once,
+	 * so a checksum known up front should be passed to the constructor instead.
+	 * @param algorithm
+	 * @param expected
+	 * @throws NoSuchAlgorithmException
+	 * @throws IllegalStateException if download has already completed unverified
+	 */
+	public void setExpectedChecksum(String algorithm, String expected) throws NoSuchAlgorithmException {
+		//System.out.println("Download.setExpectedChecksum() " + algorithm);
+		if (getStatus() == COMPLETE) {
+			throw new IllegalStateException("Download has already completed");
+		}
+		ChecksumVerifier created = new ChecksumVerifier(algorithm, expected, fileName);
+		created.setSegments(segments);
+		verifier = created;
+	}
+	
+	/**
+	 * Check that algorithm is supported and checksum is a valid hex string.
+	 * @param algorithm
+	 * @param expected
+	 * @throws NoSuchAlgorithmException if algorithm is not supported
+	 * @throws IllegalArgumentException if checksum is not valid hex
+	 */
+	public static void checkChecksum(String algorithm, String expected) throws NoSuchAlgorithmException {
+		new ChecksumVerifier(algorithm, expected, null);
+	}
+	
+	/**
+	 * Check if file has a resume journal of URL, so a download of URL into it continues where it stopped.
+	 * Journal of another URL is discarded by a new download, so it doesn't count.
+	 * @param fileName
+	 * @param url
+	 * @return
+	 */
+	public static boolean hasJournal(String fileName, URL url) {
+		ResumeJournal journal = ResumeJournal.load(ResumeJournal.getFile(fileName));
+		return journal != null && journal.url.equals(url.toString());
+	}
+	
+	/**
+	 * Get verifier of expected checksum.
+	 * @return verifier or null if no checksum is expected
+	 */
+	ChecksumVerifier getVerifier() {
+		return verifier;
+	}
+	
+	/**
+	 * Get bucket limiting this download.
+	 * @return
+	 */
+	TokenBucket getRateBucket() {
+		return rateBucket;
+	}
+	
+	/**
+	 * Get host this download is from.
+	 * @return
+	 */
+	String getHost() {
+		return url.getHost();
+	}
+	
+	/**
+	 * Get this download's progress.
+	 * @return
+	 */
+	public float getProgress() {
+		//System.out.println("Download.getProgress()");
+		return ((float) getDownloaded() / getSize()) * 100;
+	}
+	
+	/**
+	 * Get transfer speed, averaged over the last seconds so it doesn't jump with every read.
+	 * @return bytes per second, 0 if download is not running
+	 */
+	public double getSpeed() {
+		Download current = leader;
+		if (current != null) {
+			return current.getSpeed();
+		}
+		return (getStatus() == DOWNLOADING) ? metrics.getBytesPerSecond() : 0;
+	}
+	
+	/**
+	 * Get estimated time until download is complete, at current speed.
+	 * @return seconds or -1 if not known
+	 */
+	public long getRemainingTime() {
+		long total = getSize();
+		double speed = getSpeed();
+		if (total == -1 || speed < 1) {
+			return -1;
+		}
+		return (long) Math.ceil((total - getDownloaded()) / speed);
+	}
+	
+	/**
+	 * Get transfer metrics of this download.
+	 * @return
+	 */
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Get this download's status.
+	 * @return
+	 */
+	public int getStatus() {
+		//System.out.println("Download.getStatus()");
+		return status.get();
+	}
+	
+	/**
+	 * Check if download may go from one status to another.
+	 * Stopped download can only be resumed or cancelled, complete and cancelled downloads stay as they are.
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	static boolean isLegal(int from, int to) {
+		switch (to) {
+			case DOWNLOADING:
+				return from == QUEUED || from == PAUSED || from == ERROR;
+			case QUEUED:
+				return from == DOWNLOADING;
+			case PAUSED:
+				return from == DOWNLOADING || from == QUEUED;
+			case COMPLETE:
+				return from == DOWNLOADING;
+			case ERROR:
+				return from == DOWNLOADING || from == QUEUED;
+			case CANCELLED:
+				return from != COMPLETE && from != CANCELLED;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Change status if it is still the expected one.
+	 * Observers are not notified, caller does it when the change is done.
+	 * @param from expected status
+	 * @param to new status
+	 * @return false if status was changed by another thread first
+	 */
+	private boolean moveTo(int from, int to) {
+		if (!isLegal(from, to)) {
+			throw new IllegalStateException(STATUSES[from] + " download can't become " + STATUSES[to]);
+		}
+		return status.compareAndSet(from, to);
+	}
+	
+	/**
+	 * Change status from whatever it is now, if that transition is legal.
+	 * Observers are not notified, caller does it when the change is done.
+	 * @param to new status
+	 * @return false if download can't go to that status from the current one
+	 */
+	private boolean moveTo(int to) {
+		while (true) {
+			int from = status.get();
+			if (!isLegal(from, to)) {
+				return false;
+			}
+			if (status.compareAndSet(from, to)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Pause this download.
+	 * Thread running it is interrupted, so a blocked read ends right away instead of at the next chunk.
+	 */
+	public void pause() {
+		//System.out.println("Download.pause()");
+		// resume asked for while last run was stopping no longer happens
+		resumePending.set(false);
+		Thread thread = worker.get();
+		unfollow();
+		DownloadScheduler.getInstance().remove(this);
+		if (moveTo(PAUSED)) {
+			stateChanged();
+			interrupt(thread);
+		}
+	}
+
+	/**
+	 * Resume this download.
+	 * If thread of the last run is still stopping, download starts again when that thread ends,
+	 * never two threads writing the same file.
+	 */
+	public void resume() {
+		//System.out.println("Download.resume()");
+		int current = getStatus();
+		if (current != PAUSED && current != ERROR) {
+			return;
+		}
+		resumePending.set(true);
+		// thread that ends after this check finds the pending resume itself
+		if (worker.get() == null && resumePending.getAndSet(false)) {
+			restart();
+		}
+	}
+	
+	/**
+	 * Start stopped download again.
+	 */
+	private void restart() {
+		//System.out.println("Download.restart()");
+		if (moveTo(PAUSED, DOWNLOADING) || moveTo(ERROR, DOWNLOADING)) {
+			errorMessage = null;
+			stateChanged();
+			download();
+		}
+	}
+
+	/**
+	 * Cancel this download.
+	 */
+	public void cancel() {
+		//System.out.println("Download.cancel()");
+		// resume asked for while last run was stopping no longer happens
+		resumePending.set(false);
+		Thread thread = worker.get();
+		unfollow();
+		DownloadScheduler.getInstance().remove(this);
+		if (moveTo(CANCELLED)) {
+			stateChanged();
+			interrupt(thread);
+		}
+	}
+
+	/**
+	 * Interrupt thread that was running this download, so a read blocked 
+	 * in it ends right away instead of at the next chunk.
+	 * @param thread thread or null if there was none
+	 */
+	private static void interrupt(Thread thread) {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Get reason of last error.
+	 * @return reason or null if not known
+	 */
+	public String getErrorMessage() {
+		//System.out.println("Download.getErrorMessage()");
+		return errorMessage;
+	}
+
+	/**
+	 * Mark this download as having an error.
+	 */
+	public void error() {
+		//System.out.println("Download.error()");
+		if (moveTo(ERROR)) {
+			stateChanged();
+		}
+	}
+	
+	/**
+	 * Mark this download as having an error with known reason.
+	 * Error after pause or cancel is ignored, stopped download keeps its status.
+	 * @param message
+	 */
+	private void error(String message) {
+		if (moveTo(ERROR)) {
+			errorMessage = message;
+			stateChanged();
+		}
+	}
+
+	/**
+	 * Notify observers that this download's status has changed.
+	 */
+	public void stateChanged() {
+		//System.out.println("Download.stateChanged()");
+		//stopped download no longer takes new followers
+		int current = getStatus();
+		if (current != DOWNLOADING && current != QUEUED) {
+			DownloadCoalescer.getInstance().release(url, this);
+		}
+		//notify about changes
+		setChanged();
+		//notify Observer classes (DownloadsTableModel and Download Manager implement Observer)
+	    notifyObservers();
+	}
+	
 }
\ No newline at end of file
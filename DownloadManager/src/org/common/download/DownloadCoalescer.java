@@ -0,0 +1,90 @@
+package org.common.download;
+
+import java.net.URL;
+import java.util.*;
+
+/**
+ * This class keeps one transfer per URL. Download of a URL that is already 
+ * being downloaded follows that transfer and gets a copy of its file 
+ * when it is finished, instead of opening connections of its own.
+ * URLs are compared in normalized form, so case of scheme and host, 
+ * default port and fragment don't make two transfers.
+ * @author nbabic
+ */
+public class DownloadCoalescer {
+	
+	// coalescer shared by all downloads
+	private static final DownloadCoalescer instance = new DownloadCoalescer();
+	
+	// transferring download of each normalized URL
+	private final Map<String, Download> inFlight = new HashMap<String, Download>();
+	
+	/**
+	 * Get coalescer shared by all downloads.
+	 * @return
+	 */
+	public static DownloadCoalescer getInstance() {
+		return instance;
+	}
+	
+	private DownloadCoalescer() {
+	}
+	
+	/**
+	 * Find transfer of the same URL, or register download as the transfer of its URL.
+	 * @param url
+	 * @param download
+	 * @return download to follow, null if download should transfer on its own
+	 */
+	synchronized Download attach(URL url, Download download) {
+		String key = normalize(url);
+		Download current = inFlight.get(key);
+		if (current != null && current != download) {
+			return current;
+		}
+		inFlight.put(key, download);
+		return null;
+	}
+	
+	/**
+	 * Remove download as the transfer of its URL, next download of the URL starts a new one.
+	 * @param url
+	 * @param download
+	 */
+	synchronized void release(URL url, Download download) {
+		String key = normalize(url);
+		if (inFlight.get(key) == download) {
+			inFlight.remove(key);
+		}
+	}
+	
+	/**
+	 * Get number of URLs being transferred.
+	 * @return
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	/**
+	 * Get URL in the form used to find duplicates: lower case scheme and host, 
+	 * no default port, no fragment, "/" for empty path.
+	 * @param url
+	 * @return
+	 */
+	public static String normalize(URL url) {
+		String protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+		String host = url.getHost().toLowerCase(Locale.ENGLISH);
+		int port = url.getPort();
+		String file = url.getFile();
+		
+		StringBuilder key = new StringBuilder(protocol.length() + host.length() + file.length() + 10);
+		key.append(protocol).append("://").append(host);
+		if (port != -1 && port != url.getDefaultPort()) {
+			key.append(':').append(port);
+		}
+		key.append(file.length() == 0 ? "/" : file);
+		return key.toString();
+	}
+
+}
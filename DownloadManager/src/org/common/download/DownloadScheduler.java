@@ -0,0 +1,271 @@
+package org.common.download;
+
+import java.util.*;
+
+/**
+ * This class limits how many downloads run at the same time.
+ * Downloads over the limit wait in a queue ordered by the scheduling policy 
+ * (FIFO by default) and are started automatically when running downloads finish.
+ * HeadProber finds out the size of queued downloads while they wait.
+ * Observers are notified every time the queue changes.
+ * Limit can be set at startup with -Ddownload.maxActive=n.
+ * @author nbabic
+ */
+public class DownloadScheduler extends Observable implements IDownloadScheduler {
+	
+	// Default max number of downloads running at the same time.
+	public static final int DEFAULT_MAX_ACTIVE = 4;
+	
+	// scheduler shared by all downloads
+	private static final DownloadScheduler instance = new DownloadScheduler();
+	
+	// downloads waiting for a free slot
+	private final LinkedList<Download> queue = new LinkedList<Download>();
+	// number of downloads running now
+	private int active;
+	// max number of downloads running at the same time
+	private int maxActive = Math.max(1, Integer.getInteger("download.maxActive", DEFAULT_MAX_ACTIVE));
+	// orders the queue
+	private ISchedulingPolicy policy = FifoPolicy.INSTANCE;
+	
+	/**
+	 * Get scheduler shared by all downloads.
+	 * @return
+	 */
+	public static DownloadScheduler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start download now if there is a free slot, otherwise put it in the queue.
+	 * @param download
+	 */
+	@Override
+	public void schedule(Download download) {
+		//System.out.println("DownloadScheduler.schedule()");
+		boolean start;
+		boolean queued = false;
+		synchronized (this) {
+			start = active < maxActive;
+			if (start) {
+				active++;
+			} else if (download.queued()) {
+				// marked before it is in the queue, a slot freed now can only start it as QUEUED
+				insert(download);
+				queued = true;
+			}
+		}
+		
+		if (start) {
+			start(download);
+		} else if (queued) {
+			download.stateChanged();
+			queueChanged();
+			HeadProber.getInstance().probe(download);
+		}
+	}
+
+	/**
+	 * Remove download from the queue if it is still waiting.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public boolean remove(Download download) {
+		//System.out.println("DownloadScheduler.remove()");
+		boolean removed;
+		synchronized (this) {
+			removed = queue.remove(download);
+		}
+		
+		if (removed) {
+			queueChanged();
+		}
+		return removed;
+	}
+
+	/**
+	 * Get download's position in the queue, starting from 1.
+	 * Returns -1 if download is not waiting.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public synchronized int getQueuePosition(Download download) {
+		int index = queue.indexOf(download);
+		return (index == -1) ? -1 : index + 1;
+	}
+	
+	/**
+	 * Get number of downloads waiting in the queue.
+	 * @return
+	 */
+	@Override
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Get number of downloads running now.
+	 * @return
+	 */
+	@Override
+	public synchronized int getActiveCount() {
+		return active;
+	}
+	
+	/**
+	 * Get max number of downloads running at the same time.
+	 * @return
+	 */
+	@Override
+	public synchronized int getMaxActive() {
+		return maxActive;
+	}
+	
+	/**
+	 * Set max number of downloads running at the same time.
+	 * Queued downloads are started right away if the limit was raised.
+	 * @param maxActive
+	 */
+	@Override
+	public void setMaxActive(int maxActive) {
+		//System.out.println("DownloadScheduler.setMaxActive() " + maxActive);
+		if (maxActive < 1) {
+			throw new IllegalArgumentException("maxActive must be at least 1");
+		}
+		synchronized (this) {
+			this.maxActive = maxActive;
+		}
+		startQueued();
+	}
+	
+	/**
+	 * Get policy that orders the queue.
+	 * @return
+	 */
+	@Override
+	public synchronized ISchedulingPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Set policy that orders the queue, queue is sorted again right away.
+	 * @param policy
+	 */
+	@Override
+	public void setPolicy(ISchedulingPolicy policy) {
+		//System.out.println("DownloadScheduler.setPolicy() " + policy.getName());
+		synchronized (this) {
+			this.policy = policy;
+		}
+		reorder();
+	}
+	
+	/**
+	 * Sort queue again after size, priority or deadline of a queued download has changed.
+	 * Sort is stable, downloads the policy finds equal keep their order.
+	 * Keys are read once before sorting, prober and transfers change them while the sort runs.
+	 */
+	@Override
+	public void reorder() {
+		boolean changed;
+		synchronized (this) {
+			final Map<Download, Long> keys = new IdentityHashMap<Download, Long>();
+			for (Download download : queue) {
+				keys.put(download, policy.getKey(download));
+			}
+			List<Download> before = new ArrayList<Download>(queue);
+			Collections.sort(queue, new Comparator<Download>() {
+				public int compare(Download first, Download second) {
+					return compareKeys(keys.get(first), keys.get(second));
+				}
+			});
+			changed = !before.equals(queue);
+		}
+		
+		if (changed) {
+			queueChanged();
+		}
+	}
+	
+	/**
+	 * Put download into the queue after all downloads that start before it or together with it.
+	 * Called under the lock of this scheduler.
+	 * @param download
+	 */
+	private void insert(Download download) {
+		long key = policy.getKey(download);
+		ListIterator<Download> iterator = queue.listIterator(queue.size());
+		while (iterator.hasPrevious()) {
+			if (compareKeys(policy.getKey(iterator.previous()), key) <= 0) {
+				iterator.next();
+				break;
+			}
+		}
+		iterator.add(download);
+	}
+	
+	private static int compareKeys(long left, long right) {
+		return (left < right) ? -1 : ((left == right) ? 0 : 1);
+	}
+	
+	/**
+	 * Run download in its own thread and free the slot when it ends.
+	 * @param download
+	 */
+	private void start(final Download download) {
+		//System.out.println("DownloadScheduler.start()");
+		download.started();
+		
+		Thread thread = DownloadThreads.newThread(new Runnable() {
+			public void run() {
+				try {
+					download.run();
+				} finally {
+					finished();
+				}
+			}
+		});
+		thread.start();
+	}
+	
+	/**
+	 * Free the slot of a finished download.
+	 */
+	private void finished() {
+		synchronized (this) {
+			active--;
+		}
+		startQueued();
+	}
+	
+	/**
+	 * Start queued downloads while there are free slots.
+	 */
+	private void startQueued() {
+		List<Download> next = new ArrayList<Download>();
+		synchronized (this) {
+			while (active < maxActive && !queue.isEmpty()) {
+				next.add(queue.removeFirst());
+				active++;
+			}
+		}
+		
+		if (!next.isEmpty()) {
+			for (Download download : next) {
+				start(download);
+			}
+			queueChanged();
+		}
+	}
+	
+	/**
+	 * Notify observers that queue positions have changed.
+	 */
+	private void queueChanged() {
+		setChanged();
+		notifyObservers();
+	}
+
+}
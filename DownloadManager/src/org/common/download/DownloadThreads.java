@@ -0,0 +1,100 @@
+package org.common.download;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class creates threads that run downloads and their segments.
+ * Downloads can run on platform threads or, when the JVM supports them, 
+ * on virtual threads, which are much cheaper for thousands of mostly idle transfers.
+ * Mode should be selected once at startup, before any download is created.
+ * @author nbabic
+ */
+public class DownloadThreads {
+	
+	// Mode names
+	public static final String MODES[] = { "platform", "virtual" };
+	
+	// Mode codes
+	public static final int PLATFORM = 0;
+	public static final int VIRTUAL = 1;
+	
+	// current mode
+	private static volatile int mode = PLATFORM;
+	// factory for current mode
+	private static volatile ThreadFactory factory = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable);
+		}
+	};
+	
+	private DownloadThreads() {
+	}
+	
+	/**
+	 * Get current thread mode.
+	 * @return
+	 */
+	public static int getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Select thread mode for new downloads.
+	 * Returns false if virtual threads are not supported by this JVM,
+	 * platform threads are kept in that case.
+	 * @param newMode
+	 * @return
+	 */
+	public static boolean setMode(int newMode) {
+		//System.out.println("DownloadThreads.setMode() " + newMode);
+		if (newMode == VIRTUAL) {
+			ThreadFactory virtualFactory = virtualThreadFactory();
+			if (virtualFactory == null) {
+				return false;
+			}
+			factory = virtualFactory;
+		} else {
+			factory = new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable);
+				}
+			};
+		}
+		mode = newMode;
+		return true;
+	}
+	
+	/**
+	 * Check if this JVM can run downloads on virtual threads.
+	 * @return
+	 */
+	public static boolean isVirtualSupported() {
+		return virtualThreadFactory() != null;
+	}
+	
+	/**
+	 * Create unstarted thread for runnable in current mode.
+	 * @param runnable
+	 * @return
+	 */
+	public static Thread newThread(Runnable runnable) {
+		return factory.newThread(runnable);
+	}
+	
+	/**
+	 * Look up Thread.ofVirtual().factory() by reflection,
+	 * so the application still runs on JVMs without virtual threads.
+	 * @return
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factoryMethod.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.common.download;
+
+/**
+ * This class starts queued downloads in the order in which they were queued.
+ * @author nbabic
+ */
+public class FifoPolicy implements ISchedulingPolicy {
+	
+	// policy shared by all schedulers
+	public static final FifoPolicy INSTANCE = new FifoPolicy();
+	
+	private FifoPolicy() {
+	}
+	
+	/**
+	 * All downloads are equal, queue keeps its order.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public long getKey(Download download) {
+		return 0;
+	}
+	
+	/**
+	 * Get policy name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "FIFO";
+	}
+
+}
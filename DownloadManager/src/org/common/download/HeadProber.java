@@ -0,0 +1,63 @@
+package org.common.download;
+
+import java.util.concurrent.*;
+
+/**
+ * This class sends HEAD requests for queued downloads while they wait for a free slot,
+ * so their size and range support are known before they start and the scheduler
+ * can order the queue by them. Probes run on a small pool of their own threads,
+ * a few at a time, and don't take download slots.
+ * Number of probe threads can be set at startup with -Ddownload.probeThreads=n.
+ * @author nbabic
+ */
+public class HeadProber {
+	
+	// Default number of HEAD requests sent at the same time.
+	public static final int DEFAULT_PROBE_THREADS = 4;
+	
+	// prober shared by all downloads
+	private static final HeadProber instance = new HeadProber();
+	
+	// threads sending HEAD requests
+	private final ExecutorService probers;
+	
+	/**
+	 * Get prober shared by all downloads.
+	 * @return
+	 */
+	public static HeadProber getInstance() {
+		return instance;
+	}
+	
+	private HeadProber() {
+		int threads = Math.max(1, Integer.getInteger("download.probeThreads", DEFAULT_PROBE_THREADS));
+		probers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "download-prober");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Send HEAD request for download in the background if its size is not known yet.
+	 * Scheduler queue is sorted again when the answer arrives.
+	 * @param download
+	 */
+	public void probe(final Download download) {
+		//System.out.println("HeadProber.probe()");
+		if (download.getSize() != -1) {
+			return;
+		}
+		probers.execute(new Runnable() {
+			public void run() {
+				// download may have started or been removed while waiting for a prober
+				if (download.getStatus() == Download.QUEUED && download.probeAhead()) {
+					DownloadScheduler.getInstance().reorder();
+				}
+			}
+		});
+	}
+
+}
@@ -1,67 +1,181 @@
-package org.common.download;
-
-import java.net.URL;
-
-public interface IDownload {
-	/**
-	 * Start or resume downloading.
-	 */
-	public void download();
-	
-	/**
-	 * Get file name portion of URL.
-	 * @param url
-	 * @return
-	 */
-	public String getFileName(URL url);
-	
-	/**
-	 * Get this download's URL.
-	 * @return
-	 */
-	public String getUrl();
-
-	/**
-	 * Get this download's size.
-	 * @return
-	 */
-	public int getSize();
-	
-	/**
-	 * Get this download's progress.
-	 * @return
-	 */
-	public float getProgress();
-	
-	/**
-	 * Get this download's status.
-	 * @return
-	 */
-	public int getStatus();
-	
-	/**
-	 * Pause this download.
-	 */
-	public void pause();
-
-	/**
-	 * Resume this download.
-	 */
-	public void resume();
-
-	/**
-	 * Cancel this download.
-	 */
-	public void cancel();
-
-	/**
-	 * Mark this download as having an error.
-	 */
-	public void error();
-	
-	/**
-	 * Notify observers that this download's status has changed.
-	 */
-	public void stateChanged();
-	
-}
+package org.common.download;
+
+import java.net.URL;
+
+public interface IDownload {
+	/**
+	 * Start or resume downloading.
+	 */
+	public void download();
+	
+	/**
+	 * Get file name portion of URL.
+	 * @param url
+	 * @return
+	 */
+	public String getFileName(URL url);
+	
+	/**
+	 * Get file this download is saved into.
+	 * @return
+	 */
+	public String getTargetFileName();
+	
+	/**
+	 * Get this download's URL.
+	 * @return
+	 */
+	public String getUrl();
+
+	/**
+	 * Get sources of this download, first one is the download URL.
+	 * @return
+	 */
+	public URL[] getMirrors();
+	
+	/**
+	 * Get this download's size.
+	 * @return
+	 */
+	public long getSize();
+	
+	/**
+	 * Get number of bytes downloaded.
+	 * @return
+	 */
+	public long getDownloaded();
+	
+	/**
+	 * Get max number of parallel connections.
+	 * @return
+	 */
+	public int getSegmentCount();
+	
+	/**
+	 * Set max number of parallel connections.
+	 * @param segmentCount
+	 */
+	public void setSegmentCount(int segmentCount);
+	
+	/**
+	 * Get user priority, higher priority starts first under PriorityPolicy.
+	 * @return
+	 */
+	public int getPriority();
+	
+	/**
+	 * Set user priority, higher priority starts first under PriorityPolicy.
+	 * @param priority
+	 */
+	public void setPriority(int priority);
+	
+	/**
+	 * Get time by which download should be complete, in milliseconds since epoch, 0 if there is none.
+	 * @return
+	 */
+	public long getDeadline();
+	
+	/**
+	 * Set time by which download should be complete, in milliseconds since epoch, 0 for none.
+	 * @param deadline
+	 */
+	public void setDeadline(long deadline);
+	
+	/**
+	 * Get bandwidth limit of this download in bytes per second, 0 for unlimited.
+	 * @return
+	 */
+	public long getRateLimit();
+	
+	/**
+	 * Set bandwidth limit of this download in bytes per second, 0 for unlimited.
+	 * @param rate
+	 */
+	public void setRateLimit(long rate);
+	
+	/**
+	 * Get transport used for connections to server.
+	 * @return
+	 */
+	public ITransport getTransport();
+	
+	/**
+	 * Set transport used for connections to server.
+	 * @param transport
+	 */
+	public void setTransport(ITransport transport);
+	
+	/**
+	 * Get how bytes are put into the file, Download.CHANNEL_OUTPUT or Download.MAPPED_OUTPUT.
+	 * @return
+	 */
+	public int getOutputMode();
+	
+	/**
+	 * Set how bytes are put into the file, Download.CHANNEL_OUTPUT or Download.MAPPED_OUTPUT.
+	 * @param mode
+	 */
+	public void setOutputMode(int mode);
+	
+	/**
+	 * Get this download's progress.
+	 * @return
+	 */
+	public float getProgress();
+	
+	/**
+	 * Get transfer speed in bytes per second.
+	 * @return
+	 */
+	public double getSpeed();
+	
+	/**
+	 * Get estimated seconds until download is complete, -1 if not known.
+	 * @return
+	 */
+	public long getRemainingTime();
+	
+	/**
+	 * Get transfer metrics of this download.
+	 * @return
+	 */
+	public TransferMetrics getMetrics();
+	
+	/**
+	 * Get this download's status.
+	 * @return
+	 */
+	public int getStatus();
+	
+	/**
+	 * Get reason of last error.
+	 * @return reason or null if not known
+	 */
+	public String getErrorMessage();
+	
+	/**
+	 * Pause this download.
+	 */
+	public void pause();
+
+	/**
+	 * Resume this download.
+	 */
+	public void resume();
+
+	/**
+	 * Cancel this download.
+	 */
+	public void cancel();
+
+	/**
+	 * Mark this download as having an error.
+	 */
+	public void error();
+	
+	/**
+	 * Notify observers that this download's status has changed.
+	 */
+	public void stateChanged();
+	
+}
@@ -0,0 +1,65 @@
+package org.common.download;
+
+public interface IDownloadScheduler {
+	/**
+	 * Start download now if there is a free slot, otherwise put it in the queue.
+	 * @param download
+	 */
+	public void schedule(Download download);
+	
+	/**
+	 * Remove download from the queue if it is still waiting.
+	 * @param download
+	 * @return
+	 */
+	public boolean remove(Download download);
+	
+	/**
+	 * Get download's position in the queue.
+	 * @param download
+	 * @return
+	 */
+	public int getQueuePosition(Download download);
+	
+	/**
+	 * Get number of downloads waiting in the queue.
+	 * @return
+	 */
+	public int getQueueSize();
+	
+	/**
+	 * Get number of downloads running now.
+	 * @return
+	 */
+	public int getActiveCount();
+	
+	/**
+	 * Get max number of downloads running at the same time.
+	 * @return
+	 */
+	public int getMaxActive();
+	
+	/**
+	 * Set max number of downloads running at the same time.
+	 * @param maxActive
+	 */
+	public void setMaxActive(int maxActive);
+	
+	/**
+	 * Get policy that orders the queue.
+	 * @return
+	 */
+	public ISchedulingPolicy getPolicy();
+	
+	/**
+	 * Set policy that orders the queue, queue is sorted again right away.
+	 * @param policy
+	 */
+	public void setPolicy(ISchedulingPolicy policy);
+	
+	/**
+	 * Sort queue again after size, priority or deadline of a queued download has changed.
+	 */
+	public void reorder();
+	
+}
@@ -0,0 +1,19 @@
+package org.common.download;
+
+public interface ISchedulingPolicy {
+	/**
+	 * Get sort key of a queued download, the one with smaller key starts first.
+	 * Downloads with equal keys keep the order in which they were queued.
+	 * Scheduler reads the key once per sort, values it depends on may change at any time.
+	 * @param download
+	 * @return
+	 */
+	public long getKey(Download download);
+	
+	/**
+	 * Get policy name.
+	 * @return
+	 */
+	public String getName();
+	
+}
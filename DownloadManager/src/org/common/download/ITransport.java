@@ -0,0 +1,28 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+
+public interface ITransport {
+	/**
+	 * Open connection to URL, request is sent when connection is used.
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public HttpURLConnection open(URL url) throws IOException;
+	
+	/**
+	 * Finish with connection, stream is the response body or null if it wasn't opened.
+	 * @param connection
+	 * @param stream
+	 */
+	public void release(HttpURLConnection connection, InputStream stream);
+	
+	/**
+	 * Get transport name.
+	 * @return
+	 */
+	public String getName();
+	
+}
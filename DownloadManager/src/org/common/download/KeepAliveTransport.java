@@ -0,0 +1,71 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * This class sends requests over persistent HTTP/1.1 connections through HttpURLConnection.
+ * Connections are given back to the JVM keep-alive cache when a response 
+ * is finished, so many downloads from the same host skip TCP and TLS handshakes.
+ * HttpClientTransport multiplexes downloads over HTTP/2 instead, on Java 11 or newer.
+ * JVM cache keeps 5 idle connections per host by default, StartApp raises it 
+ * to MAX_CONNECTIONS unless http.maxConnections is given on the command line.
+ * The property is read once, before the first connection of the JVM is opened.
+ * @author nbabic
+ */
+public class KeepAliveTransport implements ITransport {
+	
+	// Number of idle connections kept per host, set as http.maxConnections at startup.
+	public static final int MAX_CONNECTIONS = 32;
+	
+	// transport shared by all downloads
+	public static final KeepAliveTransport INSTANCE = new KeepAliveTransport();
+	
+	private KeepAliveTransport() {
+	}
+
+	/**
+	 * Open connection to URL, reusing an idle connection to the same host if there is one.
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public HttpURLConnection open(URL url) throws IOException {
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	/**
+	 * Close response body without disconnecting, which gives the connection 
+	 * back to the keep-alive cache. Bodies that were not read to the end
+	 * are drained by the JVM if they are small, otherwise connection is closed.
+	 * @param connection
+	 * @param stream
+	 */
+	@Override
+	public void release(HttpURLConnection connection, InputStream stream) {
+		try {
+			if (stream == null) {
+				// body was never opened, open it so it can be finished
+				stream = (connection.getResponseCode() / 100 == 2) 
+						? connection.getInputStream() 
+						: connection.getErrorStream();
+			}
+			if (stream != null) {
+				stream.close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+	
+	/**
+	 * Get transport name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "Keep-alive";
+	}
+
+}
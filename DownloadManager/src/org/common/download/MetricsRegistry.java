@@ -0,0 +1,150 @@
+package org.common.download;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.*;
+
+/**
+ * This class publishes transfer metrics as JMX MBeans: the aggregate always, 
+ * a download while it is running. Snapshots of the same metrics can also be 
+ * appended to a log file at a fixed interval, 
+ * set at startup with -Ddownload.metricsLog=path and -Ddownload.metricsInterval=seconds.
+ * @author nbabic
+ */
+public class MetricsRegistry {
+	
+	// JMX domain of all metrics.
+	public static final String DOMAIN = "org.common.download";
+	
+	// Default time between two log snapshots, in seconds.
+	public static final int DEFAULT_LOG_INTERVAL = 60;
+	
+	// registry shared by all downloads
+	private static final MetricsRegistry instance = new MetricsRegistry();
+	
+	// server MBeans are registered with
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	// metrics of running downloads and their MBean names
+	private final Map<TransferMetrics, ObjectName> active = new ConcurrentHashMap<TransferMetrics, ObjectName>();
+	// writes snapshots to log, null if there is no log
+	private Timer logTimer;
+	
+	/**
+	 * Get registry shared by all downloads.
+	 * @return
+	 */
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+	
+	private MetricsRegistry() {
+		//System.out.println("MetricsRegistry.MetricsRegistry()");
+		try {
+			server.registerMBean(TransferMetrics.getAggregate(), new ObjectName(DOMAIN + ":type=TransferMetrics,name=all"));
+		} catch (JMException e) {
+			// metrics are still counted, only not published
+		}
+		
+		String log = System.getProperty("download.metricsLog");
+		if (log != null) {
+			startLog(new File(log), Integer.getInteger("download.metricsInterval", DEFAULT_LOG_INTERVAL));
+		}
+	}
+	
+	/**
+	 * Publish metrics of a running download.
+	 * @param metrics
+	 * @param id unique number of download
+	 */
+	void register(TransferMetrics metrics, int id) {
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=TransferMetrics,name=" 
+					+ ObjectName.quote(metrics.getName()) + ",id=" + id);
+			server.registerMBean(metrics, name);
+			active.put(metrics, name);
+		} catch (JMException e) {
+			// metrics are still counted, only not published
+		}
+	}
+	
+	/**
+	 * Remove metrics of a download that is no longer running.
+	 * @param metrics
+	 */
+	void unregister(TransferMetrics metrics) {
+		ObjectName name = active.remove(metrics);
+		if (name == null) {
+			return;
+		}
+		try {
+			server.unregisterMBean(name);
+		} catch (JMException e) {
+			// already gone
+		}
+	}
+	
+	/**
+	 * Append snapshot of aggregate and running downloads to log file at a fixed interval.
+	 * @param file
+	 * @param seconds
+	 */
+	public synchronized void startLog(final File file, int seconds) {
+		//System.out.println("MetricsRegistry.startLog()");
+		if (logTimer != null) {
+			logTimer.cancel();
+		}
+		logTimer = new Timer("metrics-log", true);
+		logTimer.scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				try {
+					writeSnapshot(file);
+				} catch (IOException e) {
+					// try again next time
+				}
+			}
+		}, seconds * 1000L, seconds * 1000L);
+	}
+	
+	/**
+	 * Stop writing snapshots.
+	 */
+	public synchronized void stopLog() {
+		if (logTimer != null) {
+			logTimer.cancel();
+			logTimer = null;
+		}
+	}
+	
+	/**
+	 * Append one tab separated line per metrics: time, name, active, bytes, 
+	 * bytes per second, connects, average connect ms, average time to first byte ms, 
+	 * retries, stalls.
+	 * @param file
+	 * @throws IOException
+	 */
+	private void writeSnapshot(File file) throws IOException {
+		String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		try {
+			writeSnapshot(writer, time, TransferMetrics.getAggregate());
+			for (TransferMetrics metrics : active.keySet()) {
+				writeSnapshot(writer, time, metrics);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	private static void writeSnapshot(Writer writer, String time, TransferMetrics metrics) throws IOException {
+		writer.write(time + "\t" + metrics.getName() + "\t" + metrics.getActiveCount() + "\t" + metrics.getBytes() 
+				+ "\t" + Math.round(metrics.getBytesPerSecond()) + "\t" + metrics.getConnectCount() 
+				+ "\t" + String.format(Locale.ENGLISH, "%.1f\t%.1f", metrics.getAverageConnectMillis(), 
+						metrics.getAverageTimeToFirstByteMillis()) 
+				+ "\t" + metrics.getRetries() + "\t" + metrics.getStalls() + "\n");
+	}
+
+}
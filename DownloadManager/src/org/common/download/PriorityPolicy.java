@@ -0,0 +1,34 @@
+package org.common.download;
+
+/**
+ * This class starts queued downloads with higher user priority first.
+ * @author nbabic
+ */
+public class PriorityPolicy implements ISchedulingPolicy {
+	
+	// policy shared by all schedulers
+	public static final PriorityPolicy INSTANCE = new PriorityPolicy();
+	
+	private PriorityPolicy() {
+	}
+	
+	/**
+	 * Get negated priority, higher priority is smaller.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public long getKey(Download download) {
+		return -(long) download.getPriority();
+	}
+	
+	/**
+	 * Get policy name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "Priority";
+	}
+
+}
@@ -0,0 +1,432 @@
+package org.common.download;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class computes SHA-256, SHA-1 or MD5 digest whose state can be saved and restored,
+ * so digest of a partly downloaded file is kept in the resume journal and continued
+ * after a restart, without reading the part on disk again.
+ * MessageDigest of the Java runtime doesn't give its state out.
+ * @author nbabic
+ */
+abstract class ResumableDigest {
+	
+	// Size of block all three algorithms work on.
+	private static final int BLOCK_SIZE = 64;
+	
+	// chaining values
+	final int[] state;
+	// true if words and length are little endian (MD5)
+	private final boolean littleEndian;
+	// bytes of block not filled yet
+	private final byte[] block = new byte[BLOCK_SIZE];
+	// number of bytes in block
+	private int filled;
+	// number of bytes hashed
+	private long length;
+	
+	ResumableDigest(int words, boolean littleEndian) {
+		this.state = new int[words];
+		this.littleEndian = littleEndian;
+		reset();
+	}
+	
+	/**
+	 * Create digest of algorithm.
+	 * @param algorithm SHA-256, SHA-1 or MD5
+	 * @return
+	 * @throws NoSuchAlgorithmException
+	 */
+	static ResumableDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+		if (algorithm.equals("SHA-256")) {
+			return new Sha256();
+		}
+		if (algorithm.equals("SHA-1")) {
+			return new Sha1();
+		}
+		if (algorithm.equals("MD5")) {
+			return new Md5();
+		}
+		throw new NoSuchAlgorithmException(algorithm);
+	}
+	
+	/**
+	 * Set chaining values of empty digest.
+	 * @param state
+	 */
+	abstract void initialize(int[] state);
+	
+	/**
+	 * Hash one block.
+	 * @param bytes
+	 * @param offset
+	 */
+	abstract void compress(byte[] bytes, int offset);
+	
+	/**
+	 * Start over with an empty digest.
+	 */
+	void reset() {
+		initialize(state);
+		filled = 0;
+		length = 0;
+	}
+	
+	/**
+	 * Get number of bytes hashed.
+	 * @return
+	 */
+	long getLength() {
+		return length;
+	}
+	
+	void update(byte[] bytes, int offset, int count) {
+		length += count;
+		if (filled > 0) {
+			int part = Math.min(BLOCK_SIZE - filled, count);
+			System.arraycopy(bytes, offset, block, filled, part);
+			filled += part;
+			offset += part;
+			count -= part;
+			if (filled < BLOCK_SIZE) {
+				return;
+			}
+			compress(block, 0);
+			filled = 0;
+		}
+		while (count >= BLOCK_SIZE) {
+			compress(bytes, offset);
+			offset += BLOCK_SIZE;
+			count -= BLOCK_SIZE;
+		}
+		System.arraycopy(bytes, offset, block, 0, count);
+		filled = count;
+	}
+	
+	/**
+	 * Hash bytes from position to limit of buffer, direct buffers are copied out block by block.
+	 * @param buffer
+	 */
+	void update(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		while (buffer.hasRemaining()) {
+			int part = Math.min(BLOCK_SIZE - filled, buffer.remaining());
+			buffer.get(block, filled, part);
+			filled += part;
+			length += part;
+			if (filled == BLOCK_SIZE) {
+				compress(block, 0);
+				filled = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Get digest of bytes hashed so far, digest itself is left as it is.
+	 * @return
+	 */
+	byte[] digest() {
+		int[] saved = state.clone();
+		
+		// padding: 0x80, zeros and length in bits in the last 8 bytes
+		byte[] tail = new byte[(filled < BLOCK_SIZE - 8) ? BLOCK_SIZE : 2 * BLOCK_SIZE];
+		System.arraycopy(block, 0, tail, 0, filled);
+		tail[filled] = (byte) 0x80;
+		long bits = length * 8;
+		for (int i = 0; i < 8; i++) {
+			int index = littleEndian ? tail.length - 8 + i : tail.length - 1 - i;
+			tail[index] = (byte) (bits >>> (8 * i));
+		}
+		for (int offset = 0; offset < tail.length; offset += BLOCK_SIZE) {
+			compress(tail, offset);
+		}
+		
+		byte[] result = new byte[state.length * 4];
+		for (int i = 0; i < state.length; i++) {
+			for (int j = 0; j < 4; j++) {
+				int shift = littleEndian ? 8 * j : 24 - 8 * j;
+				result[4 * i + j] = (byte) (state[i] >>> shift);
+			}
+		}
+		System.arraycopy(saved, 0, state, 0, state.length);
+		return result;
+	}
+	
+	/**
+	 * Get state as text: number of bytes hashed, chaining values
+	 * and bytes of unfinished block in hex, separated by colons.
+	 * @return
+	 */
+	String getState() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(length).append(':');
+		for (int word : state) {
+			String hex = Integer.toHexString(word);
+			for (int i = hex.length(); i < 8; i++) {
+				builder.append('0');
+			}
+			builder.append(hex);
+		}
+		builder.append(':');
+		for (int i = 0; i < filled; i++) {
+			builder.append(Character.forDigit((block[i] >> 4) & 0xF, 16)).append(Character.forDigit(block[i] & 0xF, 16));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Continue from state given by getState().
+	 * @param text
+	 * @throws IllegalArgumentException if state is damaged or of another algorithm
+	 */
+	void setState(String text) {
+		String[] parts = text.split(":", -1);
+		if (parts.length != 3 || parts[1].length() != state.length * 8) {
+			throw new IllegalArgumentException("Invalid digest state: " + text);
+		}
+		long count = Long.parseLong(parts[0]);
+		if (count < 0 || parts[2].length() != 2 * (count % BLOCK_SIZE)) {
+			throw new IllegalArgumentException("Invalid digest state: " + text);
+		}
+		
+		for (int i = 0; i < state.length; i++) {
+			state[i] = (int) Long.parseLong(parts[1].substring(8 * i, 8 * i + 8), 16);
+		}
+		filled = parts[2].length() / 2;
+		for (int i = 0; i < filled; i++) {
+			block[i] = (byte) Integer.parseInt(parts[2].substring(2 * i, 2 * i + 2), 16);
+		}
+		length = count;
+	}
+	
+	/**
+	 * Read 32 bit big endian word.
+	 * @param bytes
+	 * @param offset
+	 * @return
+	 */
+	static int bigEndian(byte[] bytes, int offset) {
+		return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+	
+	/**
+	 * SHA-256 (FIPS 180-4).
+	 */
+	private static class Sha256 extends ResumableDigest {
+		
+		// Round constants.
+		private static final int[] K = {
+			0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+			0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+			0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+			0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+			0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+		};
+		
+		// message schedule
+		private final int[] w = new int[64];
+		
+		Sha256() {
+			super(8, false);
+		}
+		
+		@Override
+		void initialize(int[] state) {
+			state[0] = 0x6a09e667;
+			state[1] = 0xbb67ae85;
+			state[2] = 0x3c6ef372;
+			state[3] = 0xa54ff53a;
+			state[4] = 0x510e527f;
+			state[5] = 0x9b05688c;
+			state[6] = 0x1f83d9ab;
+			state[7] = 0x5be0cd19;
+		}
+		
+		@Override
+		void compress(byte[] bytes, int offset) {
+			for (int i = 0; i < 16; i++) {
+				w[i] = bigEndian(bytes, offset + 4 * i);
+			}
+			for (int i = 16; i < 64; i++) {
+				int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+				int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+				w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+			}
+			
+			int a = state[0], b = state[1], c = state[2], d = state[3];
+			int e = state[4], f = state[5], g = state[6], h = state[7];
+			for (int i = 0; i < 64; i++) {
+				int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+				int t1 = h + s1 + ((e & f) ^ (~e & g)) + K[i] + w[i];
+				int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+				int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+				h = g;
+				g = f;
+				f = e;
+				e = d + t1;
+				d = c;
+				c = b;
+				b = a;
+				a = t1 + t2;
+			}
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+			state[5] += f;
+			state[6] += g;
+			state[7] += h;
+		}
+	
+	}
+	
+	/**
+	 * SHA-1 (FIPS 180-4).
+	 */
+	private static class Sha1 extends ResumableDigest {
+		
+		// message schedule
+		private final int[] w = new int[80];
+		
+		Sha1() {
+			super(5, false);
+		}
+		
+		@Override
+		void initialize(int[] state) {
+			state[0] = 0x67452301;
+			state[1] = 0xefcdab89;
+			state[2] = 0x98badcfe;
+			state[3] = 0x10325476;
+			state[4] = 0xc3d2e1f0;
+		}
+		
+		@Override
+		void compress(byte[] bytes, int offset) {
+			for (int i = 0; i < 16; i++) {
+				w[i] = bigEndian(bytes, offset + 4 * i);
+			}
+			for (int i = 16; i < 80; i++) {
+				w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+			}
+			
+			int a = state[0], b = state[1], c = state[2], d = state[3], e = state[4];
+			for (int i = 0; i < 80; i++) {
+				int f;
+				int k;
+				if (i < 20) {
+					f = (b & c) | (~b & d);
+					k = 0x5a827999;
+				} else if (i < 40) {
+					f = b ^ c ^ d;
+					k = 0x6ed9eba1;
+				} else if (i < 60) {
+					f = (b & c) | (b & d) | (c & d);
+					k = 0x8f1bbcdc;
+				} else {
+					f = b ^ c ^ d;
+					k = 0xca62c1d6;
+				}
+				int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = temp;
+			}
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+		}
+	
+	}
+	
+	/**
+	 * MD5 (RFC 1321).
+	 */
+	private static class Md5 extends ResumableDigest {
+		
+		// Rotation of each round.
+		private static final int[] SHIFTS = {
+			7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+			5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+			4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+			6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+		};
+		
+		// Round constants, integer part of abs(sin(i + 1)) * 2^32.
+		private static final int[] K = new int[64];
+		
+		static {
+			for (int i = 0; i < 64; i++) {
+				K[i] = (int) (long) (Math.abs(Math.sin(i + 1)) * 4294967296.0);
+			}
+		}
+		
+		// words of block
+		private final int[] m = new int[16];
+		
+		Md5() {
+			super(4, true);
+		}
+		
+		@Override
+		void initialize(int[] state) {
+			state[0] = 0x67452301;
+			state[1] = 0xefcdab89;
+			state[2] = 0x98badcfe;
+			state[3] = 0x10325476;
+		}
+		
+		@Override
+		void compress(byte[] bytes, int offset) {
+			for (int i = 0; i < 16; i++) {
+				int index = offset + 4 * i;
+				m[i] = (bytes[index] & 0xFF) | ((bytes[index + 1] & 0xFF) << 8)
+						| ((bytes[index + 2] & 0xFF) << 16) | (bytes[index + 3] << 24);
+			}
+			
+			int a = state[0], b = state[1], c = state[2], d = state[3];
+			for (int i = 0; i < 64; i++) {
+				int f;
+				int g;
+				if (i < 16) {
+					f = (b & c) | (~b & d);
+					g = i;
+				} else if (i < 32) {
+					f = (d & b) | (~d & c);
+					g = (5 * i + 1) % 16;
+				} else if (i < 48) {
+					f = b ^ c ^ d;
+					g = (3 * i + 5) % 16;
+				} else {
+					f = c ^ (b | ~d);
+					g = (7 * i) % 16;
+				}
+				f += a + K[i] + m[g];
+				a = d;
+				d = c;
+				c = b;
+				b += Integer.rotateLeft(f, SHIFTS[i]);
+			}
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+		}
+	
+	}
+
+}
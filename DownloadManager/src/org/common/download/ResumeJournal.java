@@ -0,0 +1,181 @@
+package org.common.download;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * This class stores what part of a download is already on disk, 
+ * so the download can be resumed after the application is restarted.
+ * Journal is kept next to the target file and holds the URL, size, 
+ * server validators (ETag, Last-Modified) and the byte ranges with their positions.
+ * If a checksum is expected, its state at those positions is kept too, so it continues
+ * without reading the file again.
+ * It is written to a temporary file first and renamed, 
+ * so a crash while saving leaves the previous journal intact.
+ * @author nbabic
+ */
+class ResumeJournal {
+	
+	// Extension added to target file name.
+	static final String EXTENSION = ".journal";
+	
+	// download URL
+	String url;
+	// size of download in bytes
+	long size = -1;
+	// server's ETag, null if not sent
+	String etag;
+	// server's Last-Modified, null if not sent
+	String lastModified;
+	// start, end and position of each byte range
+	long[][] ranges = new long[0][];
+	// algorithm of checksum state below, null if none was saved
+	String checksum;
+	// CRC32C of each byte range from its start to its position, -1 where not known
+	long[] rangeChecksums;
+	// SHA or MD5 digest state, null if not known
+	String digestState;
+	
+	/**
+	 * Get journal file of target file.
+	 * @param fileName
+	 * @return
+	 */
+	static File getFile(String fileName) {
+		return new File(fileName + EXTENSION);
+	}
+	
+	/**
+	 * Read journal from file.
+	 * @param file
+	 * @return journal or null if file is missing or damaged
+	 */
+	static ResumeJournal load(File file) {
+		//System.out.println("ResumeJournal.load() " + file);
+		if (!file.isFile()) {
+			return null;
+		}
+		
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+			
+			ResumeJournal journal = new ResumeJournal();
+			journal.url = properties.getProperty("url");
+			journal.size = Long.parseLong(properties.getProperty("size"));
+			journal.etag = properties.getProperty("etag");
+			journal.lastModified = properties.getProperty("lastModified");
+			
+			// ranges are written as start-end-position separated by commas
+			String ranges = properties.getProperty("ranges", "");
+			String[] parts = (ranges.length() == 0) ? new String[0] : ranges.split(",");
+			journal.ranges = new long[parts.length][];
+			for (int i = 0; i < parts.length; i++) {
+				String[] values = parts[i].split("-");
+				journal.ranges[i] = new long[] {
+						Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2]) };
+			}
+			
+			journal.checksum = properties.getProperty("checksum");
+			journal.digestState = properties.getProperty("digestState");
+			// range checksums are hex in the order of ranges, - where not known
+			String checksums = properties.getProperty("rangeChecksums");
+			if (checksums != null) {
+				String[] values = checksums.split(",");
+				if (values.length != parts.length) {
+					return null;
+				}
+				journal.rangeChecksums = new long[values.length];
+				for (int i = 0; i < values.length; i++) {
+					journal.rangeChecksums[i] = values[i].equals("-") ? -1 : Long.parseLong(values[i], 16);
+				}
+			}
+			
+			if (journal.url == null || journal.size < 1) {
+				return null;
+			}
+			return journal;
+		} catch (Exception e) {
+			// damaged journal, download starts from the beginning
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (Exception e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Write journal to file.
+	 * @param file
+	 * @throws IOException
+	 */
+	void save(File file) throws IOException {
+		//System.out.println("ResumeJournal.save() " + file);
+		Properties properties = new Properties();
+		properties.setProperty("url", url);
+		properties.setProperty("size", Long.toString(size));
+		if (etag != null) {
+			properties.setProperty("etag", etag);
+		}
+		if (lastModified != null) {
+			properties.setProperty("lastModified", lastModified);
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < ranges.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(ranges[i][0]).append('-').append(ranges[i][1]).append('-').append(ranges[i][2]);
+		}
+		properties.setProperty("ranges", builder.toString());
+		
+		if (checksum != null) {
+			properties.setProperty("checksum", checksum);
+		}
+		if (digestState != null) {
+			properties.setProperty("digestState", digestState);
+		}
+		if (rangeChecksums != null) {
+			builder.setLength(0);
+			for (int i = 0; i < rangeChecksums.length; i++) {
+				if (i > 0) {
+					builder.append(',');
+				}
+				builder.append((rangeChecksums[i] == -1) ? "-" : Long.toHexString(rangeChecksums[i]));
+			}
+			properties.setProperty("rangeChecksums", builder.toString());
+		}
+		
+		// write next to journal, then replace it
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		
+		if (!temp.renameTo(file)) {
+			// some platforms can't rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Can't write journal " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Delete journal file.
+	 * @param file
+	 */
+	static void delete(File file) {
+		file.delete();
+	}
+
+}
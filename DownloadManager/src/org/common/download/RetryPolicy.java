@@ -0,0 +1,64 @@
+package org.common.download;
+
+import java.util.Random;
+
+/**
+ * This class holds timeouts and reconnect rules of all downloads.
+ * Failed connections are opened again after a wait that doubles with every 
+ * attempt up to MAX_DELAY, half of it random so connections that failed together 
+ * don't reconnect together. Connection that makes no progress over MAX_RETRIES 
+ * reconnects in a row gives up.
+ * Values can be set at startup with -Ddownload.connectTimeout, -Ddownload.readTimeout 
+ * (milliseconds), -Ddownload.maxRetries, -Ddownload.minRate (bytes per second) 
+ * and -Ddownload.stallWindow (milliseconds).
+ * @author nbabic
+ */
+public class RetryPolicy {
+	
+	// Time allowed to open a connection, in milliseconds.
+	public static final int CONNECT_TIMEOUT = Integer.getInteger("download.connectTimeout", 15000);
+	
+	// Time a read may wait for data, in milliseconds.
+	public static final int READ_TIMEOUT = Integer.getInteger("download.readTimeout", 30000);
+	
+	// Number of reconnects in a row without progress before a connection gives up.
+	public static final int MAX_RETRIES = Integer.getInteger("download.maxRetries", 8);
+	
+	// Connection slower than this over STALL_WINDOW is aborted, in bytes per second.
+	public static final int MIN_RATE = Integer.getInteger("download.minRate", 1024);
+	
+	// Time over which throughput is measured, in milliseconds.
+	public static final int STALL_WINDOW = Integer.getInteger("download.stallWindow", 20000);
+	
+	// Wait before first reconnect, in milliseconds.
+	private static final long BASE_DELAY = 1000;
+	
+	// Longest wait before a reconnect, in milliseconds.
+	private static final long MAX_DELAY = 60000;
+	
+	private static final Random random = new Random();
+	
+	private RetryPolicy() {
+	}
+	
+	/**
+	 * Get wait before reconnect attempt.
+	 * @param attempt number of reconnects since the connection last made progress, from 0
+	 * @return milliseconds
+	 */
+	public static long getDelay(int attempt) {
+		long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 16));
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * half);
+	}
+	
+	/**
+	 * Check if HTTP status is worth another attempt: server errors, timeout and too many requests.
+	 * @param responseCode
+	 * @return
+	 */
+	public static boolean isRetryable(int responseCode) {
+		return responseCode / 100 == 5 || responseCode == 408 || responseCode == 429;
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.common.download;
+
+/**
+ * This class holds one byte range of a segmented download.
+ * Range is inclusive on both ends, as in HTTP Range header.
+ * Upper part of the range can be split off for another connection while 
+ * the range is being downloaded, bytes are reserved when they are read
+ * so a split never takes bytes that are already on their way to the file.
+ * Position moves only when bytes are written, reserved bytes may be ahead of it.
+ * @author nbabic
+ */
+class Segment {
+	
+	// first byte of range
+	private final long start;
+	// last byte of range, moves down when range is split
+	private volatile long end;
+	// next byte to download
+	private volatile long position;
+	// end of bytes read and reserved for writing, only the reading connection moves it
+	private volatile long reserved;
+	
+	/**
+	 * Create segment for bytes start to end.
+	 * @param start
+	 * @param end
+	 */
+	Segment(long start, long end) {
+		this(start, end, start);
+	}
+	
+	/**
+	 * Create segment for bytes start to end, already downloaded up to position.
+	 * @param start
+	 * @param end
+	 * @param position
+	 */
+	Segment(long start, long end, long position) {
+		this.start = start;
+		this.end = end;
+		this.position = position;
+		this.reserved = position;
+	}
+	
+	long getStart() {
+		return start;
+	}
+	
+	long getEnd() {
+		return end;
+	}
+	
+	long getPosition() {
+		return position;
+	}
+	
+	long getReserved() {
+		return reserved;
+	}
+	
+	/**
+	 * Reserve bytes just read for writing after the bytes reserved before them.
+	 * Fewer bytes are given if range was split since the read was started.
+	 * @param count
+	 * @return number of bytes that belong to this range
+	 */
+	synchronized int reserve(int count) {
+		int usable = (int) Math.max(0, Math.min(count, end - reserved + 1));
+		reserved += usable;
+		return usable;
+	}
+	
+	/**
+	 * Give back last bytes reserved, when fewer bytes were read than reserved for the read.
+	 * @param count
+	 */
+	synchronized void unreserve(int count) {
+		reserved -= count;
+	}
+	
+	/**
+	 * Give back bytes reserved and not written, after writing them failed.
+	 */
+	synchronized void rewind() {
+		reserved = position;
+	}
+	
+	/**
+	 * Split off upper half of what is left of this range.
+	 * @param minSize smallest part worth splitting off
+	 * @return new segment for upper half, null if less than twice minSize is left
+	 */
+	synchronized Segment split(long minSize) {
+		long from = Math.max(position, reserved);
+		long left = end - from + 1;
+		if (left < minSize * 2) {
+			return null;
+		}
+		long middle = from + left / 2;
+		Segment upper = new Segment(middle, end);
+		end = middle - 1;
+		return upper;
+	}
+	
+	/**
+	 * Move position forward after bytes are written.
+	 * @param count
+	 */
+	void advance(int count) {
+		position += count;
+	}
+	
+	/**
+	 * Get number of bytes left to download in this range.
+	 * @return
+	 */
+	long getRemaining() {
+		return end - position + 1;
+	}
+	
+	/**
+	 * Get number of bytes left to read in this range, not counting bytes waiting to be written.
+	 * @return
+	 */
+	long getUnreserved() {
+		return end - reserved + 1;
+	}
+	
+	boolean isComplete() {
+		return position > end;
+	}
+	
+}
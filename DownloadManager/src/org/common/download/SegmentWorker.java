@@ -0,0 +1,238 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * This class downloads byte ranges of a segmented download over its own connection 
+ * to one source and writes them at their offsets in the target file.
+ * When its range is finished it asks the download for another one, 
+ * which may be split off the range of the slowest connection.
+ * Connection that fails or stalls gives its range back while it waits to reconnect.
+ * @author nbabic
+ */
+class SegmentWorker implements Runnable {
+	
+	// download this worker belongs to
+	private final Download download;
+	// how connection to server is made
+	private final ITransport transport;
+	// source of the file, primary URL or a mirror
+	private final URL url;
+	private final String fileName;
+	// If-Range value, null if server sent no validator or source is a mirror
+	private final String validator;
+	// true if a range could not be downloaded from this source
+	private volatile boolean failed;
+	// true if server no longer has the file the download was started on
+	private volatile boolean remoteChanged;
+	
+	// range being downloaded, set by download under its segment lock
+	private volatile Segment segment;
+	// position of segment when it was given to this worker
+	private volatile long segmentStart;
+	// bytes of ranges finished before the current one
+	private volatile long finishedBytes;
+	// time this worker started
+	private volatile long startTime;
+	
+	SegmentWorker(Download download, ITransport transport, URL url, String fileName, String validator) {
+		this.download = download;
+		this.transport = transport;
+		this.url = url;
+		this.fileName = fileName;
+		this.validator = validator;
+	}
+
+	/**
+	 * Download ranges until there are none left or this source fails too often.
+	 */
+	@Override
+	public void run() {
+		//System.out.println("SegmentWorker.run()");
+		startTime = System.nanoTime();
+		
+		// Write at segment's offset, other segments write to the same file.
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "rw");
+			// reconnects since this worker last made progress
+			int attempt = 0;
+			Segment next;
+			while (download.getStatus() == Download.DOWNLOADING && (next = download.nextSegment(this)) != null) {
+				long before = next.getPosition();
+				try {
+					if (!fetch(next, file)) {
+						failed = true;
+						break;
+					}
+					attempt = 0;
+				} catch (IOException e) {
+					// read interrupted by pause or cancel is not a failure
+					if (download.getStatus() != Download.DOWNLOADING) {
+						break;
+					}
+					if (next.getPosition() > before) {
+						attempt = 0;
+					}
+					// another worker may finish the range while this one waits
+					download.releaseSegment(this);
+					if (!download.retryAfter(e, attempt++)) {
+						failed = true;
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			failed = true;
+		} finally {
+			// unfinished range goes back to the download for another source
+			download.releaseSegment(this);
+			if (file != null) {
+				try {
+					file.close();
+				} catch (Exception e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Download what is left of segment.
+	 * @param segment
+	 * @param file
+	 * @return false if source doesn't have the file
+	 * @throws IOException if connection failed and may be opened again
+	 */
+	private boolean fetch(Segment segment, RandomAccessFile file) throws IOException {
+		InputStream stream = null;
+		HttpURLConnection connection = null;
+		
+		try {
+			connection = download.open(url);
+			
+			// Request only what is left of this segment's range.
+			connection.setRequestProperty("Range", "bytes=" + segment.getPosition() + "-" + segment.getEnd());
+			// Server sends the whole file instead of the range if file has changed.
+			if (validator != null) {
+				connection.setRequestProperty("If-Range", validator);
+			}
+			TransferMetrics metrics = download.getMetrics();
+			long started = System.nanoTime();
+			connection.connect();
+			metrics.connected(System.nanoTime() - started);
+			
+			// Server must answer with 206 Partial Content, anything else means the range was ignored.
+			int responseCode = connection.getResponseCode();
+			metrics.firstByte(System.nanoTime() - started);
+			if (RetryPolicy.isRetryable(responseCode)) {
+				throw new IOException("Server returned HTTP " + responseCode);
+			}
+			if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+				remoteChanged = validator != null && responseCode == HttpURLConnection.HTTP_OK;
+				return false;
+			}
+			
+			// Mirror with a file of different size doesn't have the same file.
+			long total = getTotalLength(connection);
+			if (total != -1 && total != download.getSize()) {
+				return false;
+			}
+			
+			stream = connection.getInputStream();
+			
+			ChannelTransfer transfer = new ChannelTransfer(download, stream, file);
+			boolean finished;
+			try {
+				finished = transfer.copy(segment);
+			} finally {
+				transfer.close();
+			}
+			
+			// Connection closed before the whole range arrived.
+			if (!finished && download.getStatus() == Download.DOWNLOADING) {
+				throw new EOFException("Connection closed at " + segment.getPosition() + " of range ending at " + segment.getEnd());
+			}
+			return true;
+		} catch (IOException e) {
+			// failed or stalled connection is not kept for the next request
+			if (connection != null) {
+				connection.disconnect();
+				connection = null;
+			}
+			throw e;
+		} finally {
+			if (connection != null) {
+				transport.release(connection, stream);
+			}
+		}
+	}
+	
+	/**
+	 * Read file size from Content-Range header, bytes start-end/total.
+	 * @param connection
+	 * @return total or -1 if not known
+	 */
+	private static long getTotalLength(URLConnection connection) {
+		String range = connection.getHeaderField("Content-Range");
+		if (range == null) {
+			return -1;
+		}
+		int slash = range.lastIndexOf('/');
+		try {
+			return Long.parseLong(range.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Give segment to this worker, called by download under its segment lock.
+	 * @param next segment or null when worker stops
+	 */
+	void setSegment(Segment next) {
+		Segment current = segment;
+		if (current != null) {
+			finishedBytes += current.getPosition() - segmentStart;
+		}
+		if (next != null) {
+			segmentStart = next.getPosition();
+		}
+		segment = next;
+	}
+	
+	/**
+	 * Get range being downloaded.
+	 * @return segment or null if there is none
+	 */
+	Segment getSegment() {
+		return segment;
+	}
+	
+	/**
+	 * Get average speed of this worker since it started.
+	 * @return bytes per second
+	 */
+	double getRate() {
+		Segment current = segment;
+		long bytes = finishedBytes + ((current != null) ? current.getPosition() - segmentStart : 0);
+		long elapsed = System.nanoTime() - startTime;
+		return (elapsed <= 0) ? 0 : bytes * 1e9 / elapsed;
+	}
+	
+	/**
+	 * Check if source failed to deliver a range.
+	 * @return
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+	
+	/**
+	 * Check if server sent the whole file because it has changed.
+	 * @return
+	 */
+	boolean isRemoteChanged() {
+		return remoteChanged;
+	}
+
+}
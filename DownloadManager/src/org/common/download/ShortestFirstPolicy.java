@@ -0,0 +1,38 @@
+package org.common.download;
+
+/**
+ * This class starts the queued download with the fewest bytes left first,
+ * which gives the lowest mean completion time for batches of mixed sizes.
+ * Downloads of unknown size wait until HeadProber has found their size,
+ * they are started after all downloads of known size.
+ * @author nbabic
+ */
+public class ShortestFirstPolicy implements ISchedulingPolicy {
+	
+	// policy shared by all schedulers
+	public static final ShortestFirstPolicy INSTANCE = new ShortestFirstPolicy();
+	
+	private ShortestFirstPolicy() {
+	}
+	
+	/**
+	 * Get bytes left to download, unknown size counts as the largest.
+	 * @param download
+	 * @return
+	 */
+	@Override
+	public long getKey(Download download) {
+		long size = download.getSize();
+		return (size == -1) ? Long.MAX_VALUE : size - download.getDownloaded();
+	}
+	
+	/**
+	 * Get policy name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "Shortest first";
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.common.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a connection delivers less than the minimal throughput, 
+ * so it is aborted and opened again.
+ * @author nbabic
+ */
+public class StalledException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+
+	public StalledException(String message) {
+		super(message);
+	}
+
+}
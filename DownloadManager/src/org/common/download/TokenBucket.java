@@ -0,0 +1,148 @@
+package org.common.download;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits transfer rate with a token bucket.
+ * Bucket fills with rate tokens (bytes) per second up to a burst of BURST_MILLIS worth of tokens.
+ * Readers take tokens after every chunk and sleep while the bucket is in debt.
+ * State is kept in atomic counters, so readers sharing a bucket never block each other on a lock,
+ * and a bucket with rate 0 (unlimited) costs one volatile read per chunk.
+ * Rate can be changed at any time.
+ * @author nbabic
+ */
+public class TokenBucket {
+	
+	// Time worth of tokens the bucket can hold, in milliseconds.
+	public static final long BURST_MILLIS = 250;
+	
+	// Smallest burst, so a low rate still allows reasonably sized reads.
+	private static final long MIN_BURST = 4 * 1024;
+	
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	// bytes per second, 0 for unlimited
+	private volatile long rate;
+	// available tokens, negative when readers are in debt
+	private final AtomicLong tokens = new AtomicLong();
+	// time up to which tokens have been added
+	private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+	
+	/**
+	 * Create bucket with rate in bytes per second, 0 for unlimited.
+	 * @param rate
+	 */
+	public TokenBucket(long rate) {
+		setRate(rate);
+	}
+	
+	/**
+	 * Get rate in bytes per second, 0 for unlimited.
+	 * @return
+	 */
+	public long getRate() {
+		return rate;
+	}
+	
+	/**
+	 * Set rate in bytes per second, 0 for unlimited.
+	 * @param rate
+	 */
+	public void setRate(long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative");
+		}
+		// start full, so new limit applies without initial stall
+		lastRefill.set(System.nanoTime());
+		tokens.set(getBurst(rate));
+		this.rate = rate;
+	}
+	
+	/**
+	 * Check if this bucket limits anything.
+	 * @return
+	 */
+	public boolean isLimited() {
+		return rate > 0;
+	}
+	
+	/**
+	 * Get max number of tokens the bucket holds.
+	 * @return
+	 */
+	public long getBurst() {
+		return getBurst(rate);
+	}
+	
+	/**
+	 * Take tokens for bytes just read, sleeping while the bucket is in debt.
+	 * @param count
+	 * @throws InterruptedIOException if thread was interrupted while sleeping
+	 */
+	public void consume(long count) throws InterruptedIOException {
+		long currentRate = rate;
+		if (currentRate <= 0) {
+			return;
+		}
+		
+		refill(currentRate);
+		long left = tokens.addAndGet(-count);
+		if (left >= 0) {
+			return;
+		}
+		
+		// wait until debt is paid off by refill
+		long waitNanos = -left * NANOS_PER_SECOND / currentRate;
+		try {
+			Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		}
+	}
+	
+	/**
+	 * Add tokens for time passed since last refill, up to the burst.
+	 * @param currentRate
+	 */
+	private void refill(long currentRate) {
+		long now = System.nanoTime();
+		long last = lastRefill.get();
+		long elapsed = now - last;
+		if (elapsed <= 0) {
+			return;
+		}
+		
+		long burst = getBurst(currentRate);
+		long added;
+		long refilledUpTo;
+		if (elapsed >= NANOS_PER_SECOND) {
+			// idle long enough to fill the bucket, avoids overflow below
+			added = burst;
+			refilledUpTo = now;
+		} else {
+			added = elapsed * currentRate / NANOS_PER_SECOND;
+			if (added == 0) {
+				return;
+			}
+			// advance only by the time the whole tokens stand for
+			refilledUpTo = last + added * NANOS_PER_SECOND / currentRate;
+		}
+		
+		// only one thread adds tokens for the same time
+		if (!lastRefill.compareAndSet(last, refilledUpTo)) {
+			return;
+		}
+		
+		long current;
+		do {
+			current = tokens.get();
+		} while (!tokens.compareAndSet(current, Math.min(burst, current + added)));
+	}
+	
+	private static long getBurst(long rate) {
+		return Math.max(MIN_BURST, rate * BURST_MILLIS / 1000);
+	}
+
+}
@@ -0,0 +1,245 @@
+package org.common.download;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class counts transfer metrics of one download, or of all downloads.
+ * Every value of a download is also added to its parent, the aggregate.
+ * Counters are atomics, recording never takes a lock. Rate is an exponentially 
+ * weighted moving average computed when it is read, weighted by time since 
+ * the last reading, so the transfer loop only adds to a counter.
+ * @author nbabic
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+	
+	// Time constant of rate average, in nanoseconds.
+	private static final long RATE_TIME_CONSTANT = 5000000000L;
+	
+	// Min time between two rate samples, in nanoseconds.
+	private static final long MIN_SAMPLE_INTERVAL = 100000000L;
+	
+	// Number of recent events kept.
+	private static final int MAX_EVENTS = 32;
+	
+	// metrics of all downloads
+	private static final TransferMetrics aggregate = new TransferMetrics("all", null);
+	
+	private final String name;
+	// metrics values are also added to, null for the aggregate
+	private final TransferMetrics parent;
+	
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectNanos = new AtomicLong();
+	private volatile long lastConnectNanos;
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong firstByteNanos = new AtomicLong();
+	private volatile long lastFirstByteNanos;
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+	// recent retry and stall events, oldest first
+	private final LinkedList<String> events = new LinkedList<String>();
+	
+	// time of last rate sample, only the thread that moves it updates the rate
+	private final AtomicLong sampleTime = new AtomicLong(System.nanoTime());
+	// bytes at last rate sample
+	private volatile long sampleBytes;
+	// rate average, bits of a double
+	private final AtomicLong rate = new AtomicLong(Double.doubleToLongBits(0));
+	
+	/**
+	 * Get metrics of all downloads.
+	 * @return
+	 */
+	public static TransferMetrics getAggregate() {
+		return aggregate;
+	}
+	
+	/**
+	 * Create metrics of a download, counted also in the aggregate.
+	 * @param name
+	 */
+	public TransferMetrics(String name) {
+		this(name, aggregate);
+	}
+	
+	private TransferMetrics(String name, TransferMetrics parent) {
+		this.name = name;
+		this.parent = parent;
+	}
+	
+	/**
+	 * Record start of a download run.
+	 */
+	void started() {
+		active.incrementAndGet();
+		if (parent != null) {
+			parent.started();
+		}
+	}
+	
+	/**
+	 * Record end of a download run.
+	 */
+	void finished() {
+		active.decrementAndGet();
+		if (parent != null) {
+			parent.finished();
+		}
+	}
+	
+	/**
+	 * Record bytes written to file.
+	 * @param count
+	 */
+	void transferred(int count) {
+		bytes.addAndGet(count);
+		if (parent != null) {
+			parent.transferred(count);
+		}
+	}
+	
+	/**
+	 * Record time taken by connect.
+	 * @param nanos
+	 */
+	void connected(long nanos) {
+		connects.incrementAndGet();
+		connectNanos.addAndGet(nanos);
+		lastConnectNanos = nanos;
+		if (parent != null) {
+			parent.connected(nanos);
+		}
+	}
+	
+	/**
+	 * Record time from request to response headers.
+	 * @param nanos
+	 */
+	void firstByte(long nanos) {
+		responses.incrementAndGet();
+		firstByteNanos.addAndGet(nanos);
+		lastFirstByteNanos = nanos;
+		if (parent != null) {
+			parent.firstByte(nanos);
+		}
+	}
+	
+	/**
+	 * Record transfer started again.
+	 */
+	void retried() {
+		retries.incrementAndGet();
+		if (parent != null) {
+			parent.retried();
+		}
+	}
+	
+	/**
+	 * Record connection aborted because it stalled or timed out.
+	 */
+	void stalled() {
+		stalls.incrementAndGet();
+		if (parent != null) {
+			parent.stalled();
+		}
+	}
+	
+	/**
+	 * Record event, such as a reconnect and its cause.
+	 * Only the last few events are kept.
+	 * @param text
+	 */
+	void event(String text) {
+		String line = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + " " + text;
+		synchronized (events) {
+			if (events.size() == MAX_EVENTS) {
+				events.removeFirst();
+			}
+			events.addLast(line);
+		}
+		if (parent != null) {
+			parent.event(name + ": " + text);
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getActiveCount() {
+		return active.get();
+	}
+	
+	public long getBytes() {
+		return bytes.get();
+	}
+	
+	public double getBytesPerSecond() {
+		sample();
+		return Double.longBitsToDouble(rate.get());
+	}
+	
+	public long getConnectCount() {
+		return connects.get();
+	}
+	
+	public double getAverageConnectMillis() {
+		return average(connectNanos.get(), connects.get());
+	}
+	
+	public double getLastConnectMillis() {
+		return lastConnectNanos / 1e6;
+	}
+	
+	public double getAverageTimeToFirstByteMillis() {
+		return average(firstByteNanos.get(), responses.get());
+	}
+	
+	public double getLastTimeToFirstByteMillis() {
+		return lastFirstByteNanos / 1e6;
+	}
+	
+	public long getRetries() {
+		return retries.get();
+	}
+	
+	public long getStalls() {
+		return stalls.get();
+	}
+	
+	public String[] getRecentEvents() {
+		synchronized (events) {
+			return events.toArray(new String[events.size()]);
+		}
+	}
+	
+	/**
+	 * Fold bytes since last sample into rate average.
+	 * Older rate counts less the longer ago the last sample was.
+	 */
+	private void sample() {
+		long now = System.nanoTime();
+		long last = sampleTime.get();
+		long elapsed = now - last;
+		if (elapsed < MIN_SAMPLE_INTERVAL || !sampleTime.compareAndSet(last, now)) {
+			return;
+		}
+		
+		long total = bytes.get();
+		double current = (total - sampleBytes) * 1e9 / elapsed;
+		sampleBytes = total;
+		
+		double weight = 1 - Math.exp(-(double) elapsed / RATE_TIME_CONSTANT);
+		double average = Double.longBitsToDouble(rate.get());
+		rate.set(Double.doubleToLongBits(average + weight * (current - average)));
+	}
+	
+	private static double average(long nanos, long count) {
+		return (count == 0) ? 0 : nanos / 1e6 / count;
+	}
+
+}
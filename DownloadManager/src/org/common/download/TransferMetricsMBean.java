@@ -0,0 +1,83 @@
+package org.common.download;
+
+/**
+ * Management interface of transfer metrics, 
+ * name follows the JMX standard MBean convention.
+ * Times are in milliseconds, rates in bytes per second.
+ * @author nbabic
+ */
+public interface TransferMetricsMBean {
+	
+	/**
+	 * Get name of download, or of the aggregate.
+	 * @return
+	 */
+	public String getName();
+	
+	/**
+	 * Get number of downloads running.
+	 * @return
+	 */
+	public int getActiveCount();
+	
+	/**
+	 * Get number of bytes transferred.
+	 * @return
+	 */
+	public long getBytes();
+	
+	/**
+	 * Get transfer rate, exponentially weighted moving average.
+	 * @return
+	 */
+	public double getBytesPerSecond();
+	
+	/**
+	 * Get number of connections made.
+	 * @return
+	 */
+	public long getConnectCount();
+	
+	/**
+	 * Get average time to connect.
+	 * @return
+	 */
+	public double getAverageConnectMillis();
+	
+	/**
+	 * Get time of last connect.
+	 * @return
+	 */
+	public double getLastConnectMillis();
+	
+	/**
+	 * Get average time from request to response headers.
+	 * @return
+	 */
+	public double getAverageTimeToFirstByteMillis();
+	
+	/**
+	 * Get time from request to response headers of last request.
+	 * @return
+	 */
+	public double getLastTimeToFirstByteMillis();
+	
+	/**
+	 * Get number of times transfer was started again.
+	 * @return
+	 */
+	public long getRetries();
+	
+	/**
+	 * Get number of connections aborted because they stalled or timed out.
+	 * @return
+	 */
+	public long getStalls();
+	
+	/**
+	 * Get last retry and stall events with their time, oldest first.
+	 * @return
+	 */
+	public String[] getRecentEvents();
+
+}
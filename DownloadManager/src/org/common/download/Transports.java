@@ -0,0 +1,29 @@
+package org.common.download;
+
+/**
+ * This class looks up transports that need a newer JVM than the rest of the application.
+ * @author nbabic
+ */
+public class Transports {
+	
+	private Transports() {
+	}
+	
+	/**
+	 * Get transport on java.net.http.HttpClient, which multiplexes downloads over HTTP/2.
+	 * It is loaded by reflection, so the application still runs on JVMs older than 11
+	 * and builds without it.
+	 * @return null if this JVM or build has no HttpClientTransport
+	 */
+	public static ITransport getHttpClient() {
+		try {
+			return (ITransport) Class.forName("org.common.download.HttpClientTransport").getField("INSTANCE").get(null);
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			// class file is newer than this JVM
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.common.download;
+
+import java.net.*;
+
+/**
+ * This class checks that text entered as download URL can be downloaded.
+ * @author nbabic
+ */
+public class UrlVerifier {
+	
+	private UrlVerifier() {
+	}
+	
+	/**
+	 * Verify download URL
+	 * @param url
+	 * @return verified URL or null if it can't be downloaded
+	 */
+	public static URL verify(String url) {
+		//System.out.println("UrlVerifier.verify()");
+		
+		// Only allow HTTP and HTTPS URLs.
+		//System.out.println("UrlVerifier.verify() url - " + url);
+		String lowerCase = url.toLowerCase();
+		if (!lowerCase.startsWith("http://") && !lowerCase.startsWith("https://")) {
+			return null;
+		}
+		      
+		// Verify format of URL.
+	    URL verifiedUrl = null;
+	    try {
+			verifiedUrl = new URL(url);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	    
+		// Make sure URL specifies a file.
+	    //System.out.println("UrlVerifier.verify() getFile - " + verifiedUrl.getFile());
+	    if (verifiedUrl.getFile().length() < 2) {
+	    	return null;
+	    }
+	    
+		return verifiedUrl;
+	}
+
+}
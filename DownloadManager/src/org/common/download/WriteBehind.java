@@ -0,0 +1,246 @@
+package org.common.download;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class writes chunks of one byte range into the target file on shared writer threads,
+ * so a slow disk doesn't hold up reading from the connection.
+ * Chunks wait in a bounded queue, reader blocks when the queue is full
+ * and the connection slows down to the speed of the disk.
+ * Writer takes all chunks waiting and writes them with one gathering write,
+ * then goes back to the pool, so writers take turns between ranges when the disk is slow.
+ * Segment position moves only after its bytes are written, so progress,
+ * checksum and resume journal never count bytes that are not in the file.
+ * Queue length can be set with -Ddownload.writeQueue=chunks, 0 writes on the reading thread
+ * (for machines with a single core or files on a ramdisk), number of writer threads 
+ * with -Ddownload.writerThreads.
+ * @author nbabic
+ */
+class WriteBehind implements Runnable {
+	
+	// Max number of chunks waiting to be written, per range, 0 if chunks are written right away.
+	static final int QUEUE_LENGTH = Math.max(0, Integer.getInteger("download.writeQueue", 8));
+	
+	// Number of threads writing chunks of all downloads.
+	static final int WRITER_THREADS = Math.max(1, Integer.getInteger("download.writerThreads", 2));
+	
+	// threads writing chunks of all downloads
+	private static final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "download-writer");
+			// pending writes of a closed application are covered by the resume journal
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// download chunks belong to
+	private final Download download;
+	// file to write into, used only by the writer
+	private final FileChannel target;
+	// range chunks are written into, one after another from its position
+	private final Segment segment;
+	// pool chunks are given back to
+	private final BufferPool pool = BufferPool.getInstance();
+	// chunks waiting to be written, flipped and ready to write
+	private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, QUEUE_LENGTH));
+	// true while a writer thread is assigned to this range
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	// chunks taken by the writer for one gathering write, used by one writer at a time
+	private final ByteBuffer[] batch = new ByteBuffer[Math.max(1, QUEUE_LENGTH)];
+	// chunks given to this writer and not yet written, guarded by this
+	private int pending;
+	// first write that failed, later chunks are dropped
+	private volatile IOException failure;
+	
+	/**
+	 * Create writer of chunks of segment into file.
+	 * @param download
+	 * @param target
+	 * @param segment
+	 */
+	WriteBehind(Download download, FileChannel target, Segment segment) {
+		this.download = download;
+		this.target = target;
+		this.segment = segment;
+	}
+	
+	/**
+	 * Queue chunk to be written after the chunks before it.
+	 * Blocks while the queue is full. Chunk belongs to the writer after this call.
+	 * @param chunk flipped buffer from the BufferPool
+	 * @throws IOException if an earlier write failed or thread was interrupted
+	 */
+	void write(ByteBuffer chunk) throws IOException {
+		if (!chunk.hasRemaining() || failure != null) {
+			pool.release(chunk);
+			check();
+			return;
+		}
+		if (QUEUE_LENGTH == 0) {
+			writeNow(chunk);
+			return;
+		}
+		
+		synchronized (this) {
+			pending++;
+		}
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			pool.release(chunk);
+			written(1);
+			// paused or cancelled while waiting for the disk
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for writer");
+		}
+		
+		if (scheduled.compareAndSet(false, true)) {
+			writers.execute(this);
+		}
+	}
+	
+	/**
+	 * Write chunk on the calling thread.
+	 * @param chunk
+	 * @throws IOException
+	 */
+	private void writeNow(ByteBuffer chunk) throws IOException {
+		try {
+			writeBatch(new ByteBuffer[] { chunk }, 1);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			pool.release(chunk);
+		}
+	}
+	
+	/**
+	 * Wait until all queued chunks are written.
+	 * @throws IOException if a write failed
+	 */
+	void flush() throws IOException {
+		close();
+		check();
+	}
+	
+	/**
+	 * Wait until all queued chunks are written or dropped, even if interrupted,
+	 * so the segment is not given to another connection while its bytes are on their way.
+	 * After a failed write bytes reserved and not written are given back to the segment.
+	 */
+	synchronized void close() {
+		boolean interrupted = false;
+		while (pending > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			segment.rewind();
+		}
+	}
+	
+	/**
+	 * Write one batch of chunks waiting in the queue.
+	 * Writer is asked for again if more chunks are waiting, 
+	 * ranges queued behind this one are written first.
+	 */
+	@Override
+	public void run() {
+		int count = 0;
+		ByteBuffer chunk;
+		while (count < batch.length && (chunk = queue.poll()) != null) {
+			batch[count++] = chunk;
+		}
+		
+		if (count > 0) {
+			try {
+				if (failure == null) {
+					writeBatch(batch, count);
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				for (int i = 0; i < count; i++) {
+					pool.release(batch[i]);
+					batch[i] = null;
+				}
+				written(count);
+			}
+		}
+		
+		if (!queue.isEmpty()) {
+			writers.execute(this);
+			return;
+		}
+		// chunk queued after the last check would be left without a writer
+		scheduled.set(false);
+		if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+			writers.execute(this);
+		}
+	}
+	
+	/**
+	 * Write chunks at segment's position and move segment over them.
+	 * @param batch
+	 * @param count
+	 * @throws IOException
+	 */
+	private void writeBatch(ByteBuffer[] batch, int count) throws IOException {
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			length += batch[i].remaining();
+		}
+		
+		// file is not shared with other ranges, its position is free to use
+		target.position(segment.getPosition());
+		long done = 0;
+		while (done < length) {
+			done += target.write(batch, 0, count);
+		}
+		
+		// hash chunks while they are still in their buffers
+		ChecksumVerifier verifier = download.getVerifier();
+		for (int i = 0; i < count; i++) {
+			int size = batch[i].limit();
+			if (verifier != null) {
+				verifier.written(segment, batch[i], size);
+			} else {
+				segment.advance(size);
+			}
+			download.addProgress(size);
+		}
+	}
+	
+	/**
+	 * Count chunks as done and wake thread waiting for them.
+	 * @param count
+	 */
+	private synchronized void written(int count) {
+		pending -= count;
+		notifyAll();
+	}
+	
+	/**
+	 * Throw failure of an earlier write.
+	 * @throws IOException
+	 */
+	private void check() throws IOException {
+		IOException current = failure;
+		if (current != null) {
+			throw current;
+		}
+	}
+
+}
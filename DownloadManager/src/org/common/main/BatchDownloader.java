@@ -0,0 +1,188 @@
+package org.common.main;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.common.download.Download;
+
+/**
+ * This class downloads a list of URLs without graphic interface,
+ * for servers and scheduled jobs. No Swing class is loaded.
+ * URLs are read one per line, empty lines and lines starting with # are skipped.
+ * URL can be followed by mirror URLs of the same file, separated by spaces,
+ * and by expected checksum as algorithm:hex, for example
+ * sha256:9f86d0..., algorithms are sha256, sha1, md5 and crc32c.
+ * Progress is written to standard output as tab separated lines:
+ * <pre>
+ * status	url	downloaded	size	status name	file
+ * progress	url	downloaded	size
+ * done	complete count	failed count
+ * </pre>
+ * Status lines are written on every status change, progress lines at most 
+ * once per REPORT_INTERVAL for each download, size is -1 while not known.
+ * @author nbabic
+ */
+public class BatchDownloader implements Observer {
+	
+	// Min time between two progress lines of one download, in milliseconds.
+	public static final long REPORT_INTERVAL = 1000;
+	
+	// directory downloads are saved into
+	private final File outputDir;
+	// downloads started by this batch
+	private final List<Download> downloads = new ArrayList<Download>();
+	// downloads that reached complete, cancelled or error
+	private final Set<Download> finished = new HashSet<Download>();
+	// downloads with progress not yet reported
+	private final Set<Download> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+	// file names already used in this batch
+	private final Set<String> usedNames = new HashSet<String>();
+	// where progress lines go
+	private final PrintStream out;
+	
+	public BatchDownloader(File outputDir, PrintStream out) {
+		this.outputDir = outputDir;
+		this.out = out;
+	}
+	
+	/**
+	 * Download every URL from input and wait until all are finished.
+	 * @param input
+	 * @return number of downloads that didn't complete
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int run(BufferedReader input) throws IOException, InterruptedException {
+		//System.out.println("BatchDownloader.run()");
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Can't create output directory " + outputDir);
+		}
+		
+		// report progress from its own thread
+		Timer reporter = new Timer("progress", true);
+		reporter.schedule(new TimerTask() {
+			public void run() {
+				reportProgress();
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL);
+		
+		int invalid = 0;
+		String line;
+		while ((line = input.readLine()) != null) {
+			line = line.trim();
+			if (UrlLine.isSkipped(line)) {
+				continue;
+			}
+			
+			// URLs and checksum are checked before download starts
+			try {
+				add(UrlLine.parse(line));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				invalid++;
+			}
+		}
+		
+		// wait for all downloads to reach final status
+		synchronized (this) {
+			while (finished.size() < downloads.size()) {
+				wait();
+			}
+		}
+		reporter.cancel();
+		reportProgress();
+		
+		int complete = 0;
+		for (Download download : downloads) {
+			if (download.getStatus() == Download.COMPLETE) {
+				complete++;
+			}
+		}
+		int failed = downloads.size() - complete + invalid;
+		out.println("done\t" + complete + "\t" + failed);
+		return failed;
+	}
+	
+	/**
+	 * Start download of URL into output directory.
+	 * @param entry URL with its mirrors and checksum
+	 */
+	private void add(UrlLine entry) {
+		File file = new File(outputDir, uniqueName(Download.fileNameOf(entry.mirrors[0])));
+		Download download = entry.start(file.getPath());
+		
+		synchronized (this) {
+			downloads.add(download);
+		}
+		download.addObserver(this);
+		// download may have finished before observer was registered
+		statusChanged(download);
+	}
+	
+	/**
+	 * Make file name unique within this batch, 
+	 * second file with the same name gets suffix -1, third -2 and so on.
+	 * @param name
+	 * @return
+	 */
+	private String uniqueName(String name) {
+		if (name.length() == 0) {
+			name = "index";
+		}
+		
+		String unique = name;
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0) ? name.substring(0, dot) : name;
+		String extension = (dot > 0) ? name.substring(dot) : "";
+		for (int i = 1; !usedNames.add(unique); i++) {
+			unique = base + "-" + i + extension;
+		}
+		return unique;
+	}
+
+	/**
+	 * Update is called when a Download notifies its observers of any changes.
+	 */
+	@Override
+	public void update(Observable arg0, Object arg1) {
+		Download download = (Download) arg0;
+		if (arg1 == Download.PROGRESS) {
+			// reported once per interval however often it moves
+			if (!dirty.contains(download)) {
+				dirty.add(download);
+			}
+		} else {
+			out.println("status\t" + download.getUrl() + "\t" + download.getDownloaded() + "\t" 
+					+ download.getSize() + "\t" + Download.STATUSES[download.getStatus()] + "\t" 
+					+ download.getTargetFileName());
+			statusChanged(download);
+		}
+	}
+	
+	/**
+	 * Count download as finished if it reached final status.
+	 * @param download
+	 */
+	private synchronized void statusChanged(Download download) {
+		int status = download.getStatus();
+		if (status == Download.COMPLETE || status == Download.CANCELLED || status == Download.ERROR) {
+			if (downloads.contains(download) && finished.add(download)) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Write progress line for each download that moved since the last report.
+	 */
+	private void reportProgress() {
+		for (Iterator<Download> iterator = dirty.iterator(); iterator.hasNext();) {
+			Download download = iterator.next();
+			// unmark before values are read, progress after this marks it again
+			iterator.remove();
+			out.println("progress\t" + download.getUrl() + "\t" + download.getDownloaded() + "\t" + download.getSize());
+		}
+	}
+
+}
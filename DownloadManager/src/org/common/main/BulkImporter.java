@@ -0,0 +1,248 @@
+package org.common.main;
+
+import java.awt.Component;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+
+import javax.swing.*;
+
+import org.common.download.Download;
+import org.common.tablemodel.IDownloadsTableModel;
+
+/**
+ * This class adds downloads from a list of URLs without blocking the window.
+ * Lines are read and verified on a background thread, in the same format as
+ * headless batches, and every file is saved into the download directory
+ * without asking. Name taken by another download or an existing file is handled
+ * by the collision rule. Rows are added to the table in batches on the event dispatch thread.
+ * @author nbabic
+ */
+class BulkImporter extends SwingWorker<Void, Download> {
+	
+	// Collision rule names
+	static final String COLLISION_RULES[] = { "Rename", "Skip", "Overwrite" };
+	
+	// Collision rule codes: add suffix -1, -2... to the name, leave URL out, or replace existing file
+	static final int RENAME = 0;
+	static final int SKIP = 1;
+	static final int OVERWRITE = 2;
+	
+	// window messages are shown over
+	private final Component parent;
+	// table downloads are added to
+	private final IDownloadsTableModel tableModel;
+	// directory downloads are saved into
+	private final File directory;
+	// what to do when file name is taken
+	private final int collisionRule;
+	// paths of files of downloads added in this session, shared by all imports
+	private final Set<String> usedNames;
+	// pasted or dropped text, null if list is read from files
+	private final String text;
+	// files holding lists, null if list is text
+	private final List<File> files;
+	
+	// number of downloads added
+	private int added;
+	// number of lines that are not valid
+	private int invalid;
+	// number of URLs left out because their file exists
+	private int skipped;
+	// first problem found, shown to user
+	private String firstError;
+	
+	/**
+	 * Create import of pasted or dropped text.
+	 * @param parent
+	 * @param tableModel
+	 * @param directory
+	 * @param collisionRule
+	 * @param usedNames
+	 * @param text
+	 */
+	BulkImporter(Component parent, IDownloadsTableModel tableModel, File directory, int collisionRule,
+			Set<String> usedNames, String text) {
+		this(parent, tableModel, directory, collisionRule, usedNames, text, null);
+	}
+	
+	/**
+	 * Create import of list files.
+	 * @param parent
+	 * @param tableModel
+	 * @param directory
+	 * @param collisionRule
+	 * @param usedNames
+	 * @param files
+	 */
+	BulkImporter(Component parent, IDownloadsTableModel tableModel, File directory, int collisionRule,
+			Set<String> usedNames, List<File> files) {
+		this(parent, tableModel, directory, collisionRule, usedNames, null, files);
+	}
+	
+	private BulkImporter(Component parent, IDownloadsTableModel tableModel, File directory, int collisionRule,
+			Set<String> usedNames, String text, List<File> files) {
+		this.parent = parent;
+		this.tableModel = tableModel;
+		this.directory = directory;
+		this.collisionRule = collisionRule;
+		this.usedNames = usedNames;
+		this.text = text;
+		this.files = files;
+	}
+	
+	/**
+	 * Read list and start a download for every valid line, on a background thread.
+	 */
+	@Override
+	protected Void doInBackground() {
+		//System.out.println("BulkImporter.doInBackground()");
+		if (text != null) {
+			read(new BufferedReader(new StringReader(text)), "pasted text");
+		} else {
+			for (File file : files) {
+				try {
+					BufferedReader reader = new BufferedReader(new FileReader(file));
+					try {
+						read(reader, file.getName());
+					} finally {
+						reader.close();
+					}
+				} catch (IOException e) {
+					error("Can't read " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Start a download for every valid line of list.
+	 * @param reader
+	 * @param source name of list shown in errors
+	 */
+	private void read(BufferedReader reader, String source) {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null && !isCancelled()) {
+				line = line.trim();
+				if (UrlLine.isSkipped(line)) {
+					continue;
+				}
+				
+				UrlLine entry;
+				try {
+					entry = UrlLine.parse(line);
+				} catch (IllegalArgumentException e) {
+					invalid++;
+					error(e.getMessage());
+					continue;
+				}
+				
+				String fileName = chooseFileName(entry.mirrors[0]);
+				if (fileName == null) {
+					skipped++;
+					continue;
+				}
+				publish(entry.start(fileName));
+				added++;
+			}
+		} catch (IOException e) {
+			error("Can't read " + source + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Choose file in download directory for URL by the collision rule.
+	 * Names of downloads added in this session are never given twice, even when overwriting.
+	 * @param url
+	 * @return path or null if URL is left out
+	 */
+	private String chooseFileName(URL url) {
+		String name = Download.fileNameOf(url);
+		if (name.length() == 0) {
+			name = "index";
+		}
+		
+		synchronized (usedNames) {
+			File file = new File(directory, name);
+			if (isFree(file, url, collisionRule != OVERWRITE)) {
+				usedNames.add(file.getPath());
+				return file.getPath();
+			}
+			if (collisionRule == SKIP) {
+				return null;
+			}
+			
+			int dot = name.lastIndexOf('.');
+			String base = (dot > 0) ? name.substring(0, dot) : name;
+			String extension = (dot > 0) ? name.substring(dot) : "";
+			for (int i = 1; ; i++) {
+				file = new File(directory, base + "-" + i + extension);
+				if (isFree(file, url, collisionRule == RENAME)) {
+					usedNames.add(file.getPath());
+					return file.getPath();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check if file can be used for a new download.
+	 * Existing file with a resume journal of the same URL is an unfinished download of it, 
+	 * it is resumed instead of renamed. Partial file of another URL is left alone.
+	 * @param file
+	 * @param url URL to be downloaded into file
+	 * @param checkDisk false if existing file may be replaced
+	 * @return
+	 */
+	private boolean isFree(File file, URL url, boolean checkDisk) {
+		if (usedNames.contains(file.getPath())) {
+			return false;
+		}
+		return !checkDisk || !file.exists() || Download.hasJournal(file.getPath(), url);
+	}
+	
+	/**
+	 * Remember first problem, shown when import ends.
+	 * @param message
+	 */
+	private void error(String message) {
+		if (firstError == null) {
+			firstError = message;
+		}
+	}
+	
+	/**
+	 * Add rows of downloads started since last call, on the event dispatch thread.
+	 * @param downloads
+	 */
+	@Override
+	protected void process(List<Download> downloads) {
+		tableModel.addDownloads(downloads);
+	}
+	
+	/**
+	 * Tell user about lines that were not added.
+	 */
+	@Override
+	protected void done() {
+		//System.out.println("BulkImporter.done() added " + added);
+		if (invalid == 0 && skipped == 0 && firstError == null) {
+			return;
+		}
+		
+		String message = "Added " + added + " downloads.";
+		if (skipped > 0) {
+			message += "\n" + skipped + " skipped, file already exists.";
+		}
+		if (invalid > 0) {
+			message += "\n" + invalid + " invalid lines.";
+		}
+		if (firstError != null) {
+			message += "\n" + firstError;
+		}
+		JOptionPane.showMessageDialog(parent, message, "Import", JOptionPane.WARNING_MESSAGE);
+	}
+
+}
@@ -1,366 +1,643 @@
-package org.common.main;
-
-import java.awt.*;
-import java.awt.event.*;
-import java.net.*;
-import java.util.*;
-
-import javax.swing.*;
-import javax.swing.event.*;
-import javax.swing.table.TableModel;
-
-import org.common.download.Download;
-import org.common.download.IDownload;
-import org.common.tablemodel.DownloadsTableModel;
-import org.common.tablemodel.IDownloadsTableModel;
-import org.common.tablemodel.ProgressRenderer;
-
-/**
- * Graphic interface for application 
- * @author nbabic
- */
-public class DownloadManager extends JFrame implements Observer {
-	
-	//display components
-	//windows and layout managers
-	JFrame viewFrame;
-	// Set up file menu.
-    JMenuBar menuBar;
-    JMenu fileMenu;
-    // Set up add panel.
-    JPanel addPanel;
-    // Set up downloads panel.
-    JPanel downloadsPanel;
-    // Set up buttons panel.
-    JPanel buttonsPanel;
-    //buttons for managing the selected download.
-    JButton addButton;
-    JButton pauseButton;
-    JButton resumeButton;
-    JButton clearButton;
-    JButton cancelButton;
-    //menu bar components
-    JMenuItem fileExitMenuItem;
-    
-    //Download table's data model.
-    private IDownloadsTableModel tableModel;
-	
-	// Add download text field.
-	private JTextField addTextField;
-	
-	// Table showing downloads.
-	private JTable table;
-	
-	// Currently selected download.
-	private IDownload selectedDownload;
-	
-	// Flag for whether or not table selection is being cleared.
-	private boolean clearing;
-
-	// Run Download Manager.
-	public void go() {
-		System.out.println("DownloadManager.go()");
-		// Create all Swing components here
-		JFrame.setDefaultLookAndFeelDecorated(false);
-		viewFrame = new JFrame("Download Manager");
-		viewFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		viewFrame.setSize(640, 480);
-		
-		// Handle window closing event
-		addWindowListener(new WindowAdapter() {
-			public void windowClosing(WindowEvent e) {
-				actionExit();
-			}
-		});
-		
-		// Set up menu bar
-		menuBar = new JMenuBar();
-		fileMenu = new JMenu("File");
-        //menu bar components
-		fileExitMenuItem = new JMenuItem("Exit", KeyEvent.VK_X);
-		//register action event
-		fileExitMenuItem.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-            	actionExit();
-            }
-        });
-		//add menubar to menu
-		menuBar.add(fileMenu);
-		fileMenu.add(fileExitMenuItem);
-		//set menubar in the frame
-		viewFrame.setJMenuBar(menuBar);
-		
-		// Set up add panel
-		addPanel = new JPanel();
-		//add panel components
-		addTextField = new JTextField(30);
-		addButton = new JButton("Add Download");
-		//register action event
-		addButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				actionAdd();
-			}
-		});
-		//add to panel
-		addPanel.add(addTextField);
-		addPanel.add(addButton);
-		
-		//Set up Downloads table
-		tableModel = new DownloadsTableModel();
-		table = new JTable((TableModel) tableModel);
-		//register action event
-		table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
-			public void valueChanged(ListSelectionEvent e) {
-				tableSelectionChanged();
-			}
-		});
-		// Allow only one row at a time to be selected.
-		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-		
-		// Set up ProgressBar as renderer for progress column.
-		ProgressRenderer renderer = new ProgressRenderer(0, 100);
-		// show progress text
-		renderer.setStringPainted(true);
-		table.setDefaultRenderer(JProgressBar.class, renderer);
-		
-		// Set table's row height large enough to fit JProgressBar.
-		table.setRowHeight((int) renderer.getPreferredSize().getHeight());
-		
-		// Set up downloads panel.
-		downloadsPanel = new JPanel();
-		downloadsPanel.setBorder(BorderFactory.createTitledBorder("Downloads"));
-		downloadsPanel.setLayout(new BorderLayout());
-		downloadsPanel.add(new JScrollPane(table), BorderLayout.CENTER);
-
-		// Set up buttons panel.
-		buttonsPanel = new JPanel();
-		//button panel components
-		pauseButton = new JButton("Pause");
-		resumeButton = new JButton("Resume");
-		cancelButton = new JButton("Cancel");
-		clearButton = new JButton("Clear");
-		//register action event
-		pauseButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				actionPause();
-			}
-		});
-		
-		resumeButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				actionResume();
-			}
-		});
-		
-		cancelButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				actionCancel();
-			}
-		});
-		
-		clearButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				actionClear();
-			}
-		});
-		//disable buttons by default
-		pauseButton.setEnabled(false);
-		resumeButton.setEnabled(false);
-		cancelButton.setEnabled(false);
-		clearButton.setEnabled(false);
-		//add to panel
-		buttonsPanel.add(pauseButton);
-		buttonsPanel.add(resumeButton);
-		buttonsPanel.add(cancelButton);
-		buttonsPanel.add(clearButton);
-		
-		// Add panels to display.
-		viewFrame.getContentPane().setLayout(new BorderLayout());
-		viewFrame.getContentPane().add(addPanel, BorderLayout.NORTH);
-	    viewFrame.getContentPane().add(downloadsPanel, BorderLayout.CENTER);
-	    viewFrame.getContentPane().add(buttonsPanel, BorderLayout.SOUTH);
-		
-		//viewFrame.pack();
-	    viewFrame.setVisible(true);
-
-	}
-	
-	/**
-	 * Exit application
-	 */
-	private void actionExit() {
-		//System.out.println("DownloadManager.actionExit()");
-		//exit application
-    	System.exit(0);
-	}
-	
-	/**
-	 * Called when table row selection changes.
-	 */
-	private void tableSelectionChanged() {
-		//System.out.println("DownloadManager.tableSelectionChanged()");
-		//Unregister from receiving notifications from the last selected download.
-		if (selectedDownload != null) {
-			((Observable) selectedDownload).deleteObserver(DownloadManager.this);
-		}
-		
-		/* If not in the middle of clearing a download,
-		 * set the selected download and register to
-		 * receive notifications from it. 
-		*/
-		if (!clearing && table.getSelectedRow() > -1) {
-			selectedDownload = tableModel.getDownload(table.getSelectedRow());
-			((Observable) selectedDownload).addObserver(DownloadManager.this);
-			updateButtons();
-	    }
-		
-	}
-
-	/**
-	 * Update each button's state based off of the
-	 * currently selected download's status.
-	 */
-	private void updateButtons() {
-		//System.out.println("DownloadManager.updateButtons()");
-		if (selectedDownload != null) {
-			int status = selectedDownload.getStatus();
-			//System.out.println("DownloadManager.updateButtons() status " + status);
-			switch (status) {
-				case Download.DOWNLOADING:
-					pauseButton.setEnabled(true);
-					resumeButton.setEnabled(false);
-					cancelButton.setEnabled(true);
-					clearButton.setEnabled(false);
-					break;
-				case Download.PAUSED:
-					pauseButton.setEnabled(false);
-					resumeButton.setEnabled(true);
-					cancelButton.setEnabled(true);
-					clearButton.setEnabled(false);
-					break;
-				case Download.ERROR:
-					pauseButton.setEnabled(false);
-					resumeButton.setEnabled(true);
-					cancelButton.setEnabled(false);
-					clearButton.setEnabled(true);
-					break;
-				default: // COMPLETE or CANCELLED
-					pauseButton.setEnabled(false);
-					resumeButton.setEnabled(false);
-					cancelButton.setEnabled(false);
-					clearButton.setEnabled(true);
-			}
-		} else {
-			//System.out.println("No download is selected in table.");
-			pauseButton.setEnabled(false);
-			resumeButton.setEnabled(false);
-			cancelButton.setEnabled(false);
-			clearButton.setEnabled(false);
-		}
-		
-	}
-
-	/**
-	 * Add a new download.
-	 */
-	private void actionAdd() {
-		System.out.println("DownloadManager.actionAdd()");
-		//verify url
-		URL verifiedURL = verifyURL(addTextField.getText());
-		String downloadedDirName;
-		if (verifiedURL != null) {
-			System.out.println("DownloadManager.actionAdd() - OK");
-			//add download to list of downloads
-			tableModel.addDownload(new Download(verifiedURL));
-			//reset add text field
-			addTextField.setText("");
-		} else {
-			JOptionPane.showMessageDialog(this, "Invalid Download URL", "Error", JOptionPane.ERROR_MESSAGE);
-		}
-	}
-	
-	/**
-	 * Pause selected download
-	 */
-	private void actionPause() {
-		//System.out.println("DownloadManager.actionPause()");
-		selectedDownload.pause();
-	    updateButtons();
-	}
-	
-	/**
-	 * Resume selected download
-	 */
-	private void actionResume() {
-		//System.out.println("DownloadManager.actionResume()");
-		selectedDownload.resume();
-	    updateButtons();
-	}
-	
-	/**
-	 * Cancel selected download
-	 */
-	private void actionCancel() {
-		//System.out.println("DownloadManager.actionCancel()");
-		selectedDownload.cancel();
-	    updateButtons();
-	}
-
-	/**
-	 * Clear selected download
-	 */
-	private void actionClear() {
-		//System.out.println("DownloadManager.actionClear()");
-		clearing = true;
-		tableModel.clearDownload(table.getSelectedRow());
-		clearing = false;
-		selectedDownload = null;
-	    updateButtons();
-	}
-
-	/**
-	 * Update is called when a Download notifies its
-	 * observers of any changes.
-	 */
-	@Override
-	public void update(Observable arg0, Object arg1) {
-		//System.out.println("DownloadManager.update()");
-		// Update buttons if the selected download has changed.
-		if (selectedDownload != null && selectedDownload.equals(arg0)) {
-			updateButtons();
-		}
-	}
-	
-	/**
-	 * Verify download URL
-	 */
-	private URL verifyURL(String url) {
-		//System.out.println("DownloadManager.verifyUrl()");
-		
-		// Only allow HTTP URLs.
-		//System.out.println("DownloadManager.verifyUrl() url - " + url);
-		if (!url.toLowerCase().startsWith("http://")) {
-			return null;
-		}
-		      
-		// Verify format of URL.
-	    URL verifiedUrl = null;
-	    try {
-			verifiedUrl = new URL(url);
-		} catch (MalformedURLException e) {
-			// TODO Auto-generated catch block
-			return null;
-		}
-	    
-		// Make sure URL specifies a file.
-	    //System.out.println("DownloadManager.verifyUrl() getFile - " + verifiedUrl.getFile());
-	    if (verifiedUrl.getFile().length() < 2) {
-	    	//System.out.println("DownloadManager.verifyURL() < 2");
-	    	return null;
-	    }
-	    
-	    //System.out.println("DownloadManager.verifyURL() return - " + verifiedUrl);
-		return verifiedUrl;
-	}
-
+package org.common.main;
+
+import java.awt.*;
+import java.awt.datatransfer.*;
+import java.awt.event.*;
+import java.io.File;
+import java.net.*;
+import java.util.*;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.table.TableModel;
+
+import org.common.download.BandwidthLimiter;
+import org.common.download.Download;
+import org.common.download.IDownload;
+import org.common.download.UrlVerifier;
+import org.common.tablemodel.DownloadsTableModel;
+import org.common.tablemodel.IDownloadsTableModel;
+import org.common.tablemodel.ProgressRenderer;
+
+/**
+ * Graphic interface for application 
+ * @author nbabic
+ */
+public class DownloadManager extends JFrame implements Observer {
+	
+	//display components
+	//windows and layout managers
+	JFrame viewFrame;
+	// Set up file menu.
+    JMenuBar menuBar;
+    JMenu fileMenu;
+    JMenu limitsMenu;
+    // Set up add panel.
+    JPanel addPanel;
+    // Set up downloads panel.
+    JPanel downloadsPanel;
+    // Set up buttons panel.
+    JPanel buttonsPanel;
+    //buttons for managing the selected download.
+    JButton addButton;
+    JButton pauseButton;
+    JButton resumeButton;
+    JButton clearButton;
+    JButton cancelButton;
+    //menu bar components
+    JMenuItem fileImportMenuItem;
+    JMenuItem filePasteMenuItem;
+    JMenuItem fileDirectoryMenuItem;
+    JMenu collisionMenu;
+    JMenuItem fileExitMenuItem;
+    JMenuItem globalLimitMenuItem;
+    JMenuItem hostLimitMenuItem;
+    JMenuItem downloadLimitMenuItem;
+    
+    //Download table's data model.
+    private IDownloadsTableModel tableModel;
+	
+	// Add download text field.
+	private JTextField addTextField;
+	
+	// Table showing downloads.
+	private JTable table;
+	
+	// Currently selected download.
+	private IDownload selectedDownload;
+	
+	// Flag for whether or not table selection is being cleared.
+	private boolean clearing;
+	
+	// Directory imported downloads are saved into, can be set at startup with -Ddownload.dir.
+	private File downloadDir = new File(System.getProperty("download.dir", System.getProperty("user.home")));
+	
+	// What import does when file name is taken, one of BulkImporter rules.
+	private int collisionRule = BulkImporter.RENAME;
+	
+	// Files of downloads added in this session, imports don't give the same file twice.
+	private final Set<String> usedNames = Collections.synchronizedSet(new HashSet<String>());
+
+	// Run Download Manager.
+	public void go() {
+		//System.out.println("DownloadManager.go()");
+		// Create all Swing components here
+		JFrame.setDefaultLookAndFeelDecorated(false);
+		viewFrame = new JFrame("Download Manager");
+		viewFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		viewFrame.setSize(640, 480);
+		
+		// Handle window closing event
+		addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				actionExit();
+			}
+		});
+		
+		// Set up menu bar
+		menuBar = new JMenuBar();
+		fileMenu = new JMenu("File");
+        //menu bar components
+		fileImportMenuItem = new JMenuItem("Import URL List...", KeyEvent.VK_I);
+		filePasteMenuItem = new JMenuItem("Paste URLs", KeyEvent.VK_P);
+		fileDirectoryMenuItem = new JMenuItem("Download Directory...", KeyEvent.VK_D);
+		collisionMenu = new JMenu("If File Exists");
+		fileExitMenuItem = new JMenuItem("Exit", KeyEvent.VK_X);
+		//register action event
+		fileImportMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionImport();
+			}
+		});
+		filePasteMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionPaste();
+			}
+		});
+		fileDirectoryMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionDirectory();
+			}
+		});
+		// one radio item for each collision rule
+		ButtonGroup collisionGroup = new ButtonGroup();
+		for (int i = 0; i < BulkImporter.COLLISION_RULES.length; i++) {
+			final int rule = i;
+			JRadioButtonMenuItem ruleMenuItem = new JRadioButtonMenuItem(BulkImporter.COLLISION_RULES[i], rule == collisionRule);
+			ruleMenuItem.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent event) {
+					collisionRule = rule;
+				}
+			});
+			collisionGroup.add(ruleMenuItem);
+			collisionMenu.add(ruleMenuItem);
+		}
+		//register action event
+		fileExitMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+            	actionExit();
+            }
+        });
+		// Set up bandwidth limits menu
+		limitsMenu = new JMenu("Limits");
+		globalLimitMenuItem = new JMenuItem("Global Speed Limit...");
+		hostLimitMenuItem = new JMenuItem("Host Speed Limit...");
+		downloadLimitMenuItem = new JMenuItem("Download Speed Limit...");
+		//register action event
+		globalLimitMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionGlobalLimit();
+			}
+		});
+		hostLimitMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionHostLimit();
+			}
+		});
+		downloadLimitMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				actionDownloadLimit();
+			}
+		});
+		// host and download limits apply to selected download
+		hostLimitMenuItem.setEnabled(false);
+		downloadLimitMenuItem.setEnabled(false);
+		//add menubar to menu
+		menuBar.add(fileMenu);
+		fileMenu.add(fileImportMenuItem);
+		fileMenu.add(filePasteMenuItem);
+		fileMenu.addSeparator();
+		fileMenu.add(fileDirectoryMenuItem);
+		fileMenu.add(collisionMenu);
+		fileMenu.addSeparator();
+		fileMenu.add(fileExitMenuItem);
+		menuBar.add(limitsMenu);
+		limitsMenu.add(globalLimitMenuItem);
+		limitsMenu.add(hostLimitMenuItem);
+		limitsMenu.add(downloadLimitMenuItem);
+		//set menubar in the frame
+		viewFrame.setJMenuBar(menuBar);
+		
+		// Set up add panel
+		addPanel = new JPanel();
+		//add panel components
+		addTextField = new JTextField(30);
+		addButton = new JButton("Add Download");
+		//register action event
+		addButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				actionAdd();
+			}
+		});
+		//add to panel
+		addPanel.add(addTextField);
+		addPanel.add(addButton);
+		
+		//Set up Downloads table
+		tableModel = new DownloadsTableModel();
+		table = new JTable((TableModel) tableModel);
+		//register action event
+		table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+			public void valueChanged(ListSelectionEvent e) {
+				tableSelectionChanged();
+			}
+		});
+		// Allow only one row at a time to be selected.
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		// URL lists can be pasted into the table or dropped on it, as text or as files
+		TransferHandler importHandler = createImportHandler();
+		table.setTransferHandler(importHandler);
+		table.setFillsViewportHeight(true);
+		
+		// Set up ProgressBar as renderer for progress column.
+		ProgressRenderer renderer = new ProgressRenderer(0, 100);
+		// show progress text
+		renderer.setStringPainted(true);
+		table.setDefaultRenderer(JProgressBar.class, renderer);
+		
+		// Set table's row height large enough to fit JProgressBar.
+		table.setRowHeight((int) renderer.getPreferredSize().getHeight());
+		
+		// Set up downloads panel.
+		downloadsPanel = new JPanel();
+		downloadsPanel.setBorder(BorderFactory.createTitledBorder("Downloads"));
+		downloadsPanel.setLayout(new BorderLayout());
+		downloadsPanel.add(new JScrollPane(table), BorderLayout.CENTER);
+
+		// Set up buttons panel.
+		buttonsPanel = new JPanel();
+		//button panel components
+		pauseButton = new JButton("Pause");
+		resumeButton = new JButton("Resume");
+		cancelButton = new JButton("Cancel");
+		clearButton = new JButton("Clear");
+		//register action event
+		pauseButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				actionPause();
+			}
+		});
+		
+		resumeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				actionResume();
+			}
+		});
+		
+		cancelButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				actionCancel();
+			}
+		});
+		
+		clearButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				actionClear();
+			}
+		});
+		//disable buttons by default
+		pauseButton.setEnabled(false);
+		resumeButton.setEnabled(false);
+		cancelButton.setEnabled(false);
+		clearButton.setEnabled(false);
+		//add to panel
+		buttonsPanel.add(pauseButton);
+		buttonsPanel.add(resumeButton);
+		buttonsPanel.add(cancelButton);
+		buttonsPanel.add(clearButton);
+		
+		// Add panels to display.
+		viewFrame.getContentPane().setLayout(new BorderLayout());
+		viewFrame.getContentPane().add(addPanel, BorderLayout.NORTH);
+	    viewFrame.getContentPane().add(downloadsPanel, BorderLayout.CENTER);
+	    viewFrame.getContentPane().add(buttonsPanel, BorderLayout.SOUTH);
+		
+		//viewFrame.pack();
+	    viewFrame.setVisible(true);
+
+	}
+	
+	/**
+	 * Exit application
+	 */
+	private void actionExit() {
+		//System.out.println("DownloadManager.actionExit()");
+		//exit application
+    	System.exit(0);
+	}
+	
+	/**
+	 * Called when table row selection changes.
+	 */
+	private void tableSelectionChanged() {
+		//System.out.println("DownloadManager.tableSelectionChanged()");
+		//Unregister from receiving notifications from the last selected download.
+		if (selectedDownload != null) {
+			((Observable) selectedDownload).deleteObserver(DownloadManager.this);
+		}
+		
+		/* If not in the middle of clearing a download,
+		 * set the selected download and register to
+		 * receive notifications from it. 
+		*/
+		if (!clearing && table.getSelectedRow() > -1) {
+			selectedDownload = tableModel.getDownload(table.getSelectedRow());
+			((Observable) selectedDownload).addObserver(DownloadManager.this);
+			updateButtons();
+	    }
+		
+	}
+
+	/**
+	 * Update each button's state based off of the
+	 * currently selected download's status.
+	 */
+	private void updateButtons() {
+		//System.out.println("DownloadManager.updateButtons()");
+		hostLimitMenuItem.setEnabled(selectedDownload != null);
+		downloadLimitMenuItem.setEnabled(selectedDownload != null);
+		if (selectedDownload != null) {
+			int status = selectedDownload.getStatus();
+			//System.out.println("DownloadManager.updateButtons() status " + status);
+			switch (status) {
+				case Download.DOWNLOADING:
+					pauseButton.setEnabled(true);
+					resumeButton.setEnabled(false);
+					cancelButton.setEnabled(true);
+					clearButton.setEnabled(false);
+					break;
+				case Download.QUEUED:
+					pauseButton.setEnabled(true);
+					resumeButton.setEnabled(false);
+					cancelButton.setEnabled(true);
+					clearButton.setEnabled(false);
+					break;
+				case Download.PAUSED:
+					pauseButton.setEnabled(false);
+					resumeButton.setEnabled(true);
+					cancelButton.setEnabled(true);
+					clearButton.setEnabled(false);
+					break;
+				case Download.ERROR:
+					pauseButton.setEnabled(false);
+					resumeButton.setEnabled(true);
+					cancelButton.setEnabled(false);
+					clearButton.setEnabled(true);
+					break;
+				default: // COMPLETE or CANCELLED
+					pauseButton.setEnabled(false);
+					resumeButton.setEnabled(false);
+					cancelButton.setEnabled(false);
+					clearButton.setEnabled(true);
+			}
+		} else {
+			//System.out.println("No download is selected in table.");
+			pauseButton.setEnabled(false);
+			resumeButton.setEnabled(false);
+			cancelButton.setEnabled(false);
+			clearButton.setEnabled(false);
+		}
+		
+	}
+
+	/**
+	 * Add a new download.
+	 */
+	private void actionAdd() {
+		//System.out.println("DownloadManager.actionAdd()");
+		//verify url
+		//URL can be followed by mirrors of the same file, separated by spaces
+		URL[] verifiedURLs = verifyURLs(addTextField.getText());
+		String downloadedDirName;
+		if (verifiedURLs != null) {
+			//System.out.println("DownloadManager.actionAdd() - OK");
+			//ask where to save the file
+			String fileName = chooseFileName(verifiedURLs[0]);
+			if (fileName == null) {
+				return;
+			}
+			//add download to list of downloads
+			usedNames.add(new File(fileName).getPath());
+			tableModel.addDownload(new Download(verifiedURLs, fileName));
+			//reset add text field
+			addTextField.setText("");
+		} else {
+			JOptionPane.showMessageDialog(this, "Invalid Download URL", "Error", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Ask user where to save download.
+	 * @param url
+	 * @return chosen file or null if dialog was cancelled
+	 */
+	private String chooseFileName(URL url) {
+		//System.out.println("DownloadManager.chooseFileName() url - " + url);
+		JFileChooser fileSave = new JFileChooser();
+		fileSave.setSelectedFile(new File(Download.fileNameOf(url)));
+		if (fileSave.showSaveDialog(viewFrame) != JFileChooser.APPROVE_OPTION) {
+			return null;
+		}
+		return fileSave.getSelectedFile().toString();
+	}
+	
+	/**
+	 * Import URL lists from files chosen by user.
+	 */
+	private void actionImport() {
+		//System.out.println("DownloadManager.actionImport()");
+		JFileChooser fileOpen = new JFileChooser();
+		fileOpen.setMultiSelectionEnabled(true);
+		if (fileOpen.showOpenDialog(viewFrame) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		importFiles(Arrays.asList(fileOpen.getSelectedFiles()));
+	}
+	
+	/**
+	 * Import URL list from clipboard.
+	 */
+	private void actionPaste() {
+		//System.out.println("DownloadManager.actionPaste()");
+		Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+		try {
+			importText((String) clipboard.getData(DataFlavor.stringFlavor));
+		} catch (Exception e) {
+			JOptionPane.showMessageDialog(viewFrame, "Clipboard holds no URLs", "Error", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Ask user for directory imported downloads are saved into.
+	 */
+	private void actionDirectory() {
+		//System.out.println("DownloadManager.actionDirectory()");
+		JFileChooser directoryChooser = new JFileChooser(downloadDir);
+		directoryChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (directoryChooser.showDialog(viewFrame, "Select") == JFileChooser.APPROVE_OPTION) {
+			downloadDir = directoryChooser.getSelectedFile();
+		}
+	}
+	
+	/**
+	 * Start import of URL list text in the background.
+	 * @param text
+	 */
+	private void importText(String text) {
+		new BulkImporter(viewFrame, tableModel, downloadDir, collisionRule, usedNames, text).execute();
+	}
+	
+	/**
+	 * Start import of URL list files in the background.
+	 * @param files
+	 */
+	private void importFiles(List<File> files) {
+		new BulkImporter(viewFrame, tableModel, downloadDir, collisionRule, usedNames, files).execute();
+	}
+	
+	/**
+	 * Create handler that imports URL lists pasted into the table or dropped on it.
+	 * Data is only taken here, lists are read and verified in the background.
+	 * @return
+	 */
+	private TransferHandler createImportHandler() {
+		return new TransferHandler() {
+			@Override
+			public boolean canImport(TransferHandler.TransferSupport support) {
+				return support.isDataFlavorSupported(DataFlavor.javaFileListFlavor) 
+						|| support.isDataFlavorSupported(DataFlavor.stringFlavor);
+			}
+			
+			@Override
+			@SuppressWarnings("unchecked")
+			public boolean importData(TransferHandler.TransferSupport support) {
+				Transferable transferable = support.getTransferable();
+				try {
+					if (support.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+						importFiles((List<File>) transferable.getTransferData(DataFlavor.javaFileListFlavor));
+					} else if (support.isDataFlavorSupported(DataFlavor.stringFlavor)) {
+						importText((String) transferable.getTransferData(DataFlavor.stringFlavor));
+					} else {
+						return false;
+					}
+				} catch (Exception e) {
+					return false;
+				}
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Change limit of all downloads together.
+	 */
+	private void actionGlobalLimit() {
+		//System.out.println("DownloadManager.actionGlobalLimit()");
+		BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+		long rate = askRate("Speed limit of all downloads", limiter.getGlobalRate());
+		if (rate != -1) {
+			limiter.setGlobalRate(rate);
+		}
+	}
+	
+	/**
+	 * Change limit of the selected download's host.
+	 */
+	private void actionHostLimit() {
+		//System.out.println("DownloadManager.actionHostLimit()");
+		String host;
+		try {
+			host = new URL(selectedDownload.getUrl()).getHost();
+		} catch (MalformedURLException e) {
+			return;
+		}
+		BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+		long rate = askRate("Speed limit of downloads from " + host, limiter.getHostRate(host));
+		if (rate != -1) {
+			limiter.setHostRate(host, rate);
+		}
+	}
+	
+	/**
+	 * Change limit of the selected download.
+	 */
+	private void actionDownloadLimit() {
+		//System.out.println("DownloadManager.actionDownloadLimit()");
+		long rate = askRate("Speed limit of selected download", selectedDownload.getRateLimit());
+		if (rate != -1) {
+			selectedDownload.setRateLimit(rate);
+		}
+	}
+	
+	/**
+	 * Ask user for speed limit in KB/s, 0 for unlimited.
+	 * @param message
+	 * @param current limit in bytes per second
+	 * @return new limit in bytes per second or -1 if dialog was cancelled or input was invalid
+	 */
+	private long askRate(String message, long current) {
+		String input = JOptionPane.showInputDialog(viewFrame, message + " in KB/s (0 = unlimited):", 
+				Long.toString(current / 1024));
+		if (input == null) {
+			return -1;
+		}
+		try {
+			long rate = Long.parseLong(input.trim());
+			if (rate >= 0) {
+				return rate * 1024;
+			}
+		} catch (NumberFormatException e) {
+			// shown below
+		}
+		JOptionPane.showMessageDialog(viewFrame, "Invalid Speed Limit", "Error", JOptionPane.ERROR_MESSAGE);
+		return -1;
+	}
+	
+	/**
+	 * Pause selected download
+	 */
+	private void actionPause() {
+		//System.out.println("DownloadManager.actionPause()");
+		selectedDownload.pause();
+	    updateButtons();
+	}
+	
+	/**
+	 * Resume selected download
+	 */
+	private void actionResume() {
+		//System.out.println("DownloadManager.actionResume()");
+		selectedDownload.resume();
+	    updateButtons();
+	}
+	
+	/**
+	 * Cancel selected download
+	 */
+	private void actionCancel() {
+		//System.out.println("DownloadManager.actionCancel()");
+		selectedDownload.cancel();
+	    updateButtons();
+	}
+
+	/**
+	 * Clear selected download
+	 */
+	private void actionClear() {
+		//System.out.println("DownloadManager.actionClear()");
+		clearing = true;
+		tableModel.clearDownload(table.getSelectedRow());
+		clearing = false;
+		selectedDownload = null;
+	    updateButtons();
+	}
+
+	/**
+	 * Update is called when a Download notifies its
+	 * observers of any changes.
+	 */
+	@Override
+	public void update(final Observable arg0, Object arg1) {
+		//System.out.println("DownloadManager.update()");
+		// Buttons depend only on status, progress doesn't change them.
+		if (arg1 == Download.PROGRESS) {
+			return;
+		}
+		
+		// Update buttons on the event dispatch thread if the selected download has changed.
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (selectedDownload != null && selectedDownload.equals(arg0)) {
+					updateButtons();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Verify download URL
+	 */
+	private URL verifyURL(String url) {
+		//System.out.println("DownloadManager.verifyUrl()");
+		return UrlVerifier.verify(url);
+	}
+	
+	/**
+	 * Verify space separated URLs.
+	 * @param text
+	 * @return URLs or null if any of them is invalid
+	 */
+	private URL[] verifyURLs(String text) {
+		String[] parts = text.trim().split("\\s+");
+		URL[] urls = new URL[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			urls[i] = verifyURL(parts[i]);
+			if (urls[i] == null) {
+				return null;
+			}
+		}
+		return urls;
+	}
+
 }
\ No newline at end of file
@@ -1,16 +1,136 @@
-package org.common.main;
-
-public class StartApp {
-
-	/**
-	 * @param args
-	 */
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
-		DownloadManager manager = new DownloadManager();
-		// Run the Download Manager.
-		manager.go();
-
-	}
-
-}
+package org.common.main;
+
+import java.io.*;
+
+import org.common.download.BandwidthLimiter;
+import org.common.download.CloseTransport;
+import org.common.download.DeadlinePolicy;
+import org.common.download.Download;
+import org.common.download.DownloadScheduler;
+import org.common.download.DownloadThreads;
+import org.common.download.FifoPolicy;
+import org.common.download.ITransport;
+import org.common.download.KeepAliveTransport;
+import org.common.download.MetricsRegistry;
+import org.common.download.PriorityPolicy;
+import org.common.download.ShortestFirstPolicy;
+import org.common.download.Transports;
+
+public class StartApp {
+
+	/**
+	 * Start application.
+	 * Optional argument --threads=virtual runs downloads on virtual threads,
+	 * --threads=platform (default) on platform threads.
+	 * With --headless no window is opened, URLs are read from the file given 
+	 * as last argument (or standard input if there is none or it is -) 
+	 * and saved into directory given by --output=dir (default current directory).
+	 * --limit=n limits bandwidth of all downloads together to n KB/s.
+	 * --transport=close opens a new connection for every request instead of 
+	 * reusing persistent connections (--transport=keep-alive, default),
+	 * --transport=http2 sends requests through java.net.http.HttpClient, which multiplexes 
+	 * downloads from one host over a single HTTP/2 connection (Java 11 or newer).
+	 * --write=mapped copies downloaded bytes into the memory-mapped file 
+	 * instead of writing them through the file channel (--write=channel, default).
+	 * --policy=shortest starts queued downloads with the fewest bytes left first,
+	 * --policy=priority by user priority, --policy=deadline by earliest deadline,
+	 * --policy=fifo (default) in the order they were added.
+	 * --metrics-log=file appends a snapshot of transfer metrics to file every minute,
+	 * metrics are always published over JMX.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		boolean headless = false;
+		String output = ".";
+		String input = "-";
+		
+		// JVM reads size of its keep-alive cache once, before the first connection is opened
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", Integer.toString(KeepAliveTransport.MAX_CONNECTIONS));
+		}
+		
+		for (String arg : args) {
+			// Select thread mode before any download is started.
+			if (arg.equals("--threads=virtual")) {
+				if (!DownloadThreads.setMode(DownloadThreads.VIRTUAL)) {
+					System.err.println("Virtual threads are not supported by this JVM, using platform threads.");
+				}
+			} else if (arg.equals("--threads=platform")) {
+				DownloadThreads.setMode(DownloadThreads.PLATFORM);
+			} else if (arg.equals("--headless")) {
+				headless = true;
+			} else if (arg.equals("--transport=close")) {
+				Download.setDefaultTransport(CloseTransport.INSTANCE);
+			} else if (arg.equals("--transport=keep-alive")) {
+				Download.setDefaultTransport(KeepAliveTransport.INSTANCE);
+			} else if (arg.equals("--transport=http2")) {
+				ITransport httpClient = Transports.getHttpClient();
+				if (httpClient != null) {
+					Download.setDefaultTransport(httpClient);
+				} else {
+					System.err.println("HTTP/2 transport needs Java 11 or newer, using keep-alive transport.");
+				}
+			} else if (arg.equals("--write=mapped")) {
+				Download.setDefaultOutputMode(Download.MAPPED_OUTPUT);
+			} else if (arg.equals("--write=channel")) {
+				Download.setDefaultOutputMode(Download.CHANNEL_OUTPUT);
+			} else if (arg.equals("--policy=shortest")) {
+				DownloadScheduler.getInstance().setPolicy(ShortestFirstPolicy.INSTANCE);
+			} else if (arg.equals("--policy=priority")) {
+				DownloadScheduler.getInstance().setPolicy(PriorityPolicy.INSTANCE);
+			} else if (arg.equals("--policy=deadline")) {
+				DownloadScheduler.getInstance().setPolicy(DeadlinePolicy.INSTANCE);
+			} else if (arg.equals("--policy=fifo")) {
+				DownloadScheduler.getInstance().setPolicy(FifoPolicy.INSTANCE);
+			} else if (arg.startsWith("--limit=")) {
+				BandwidthLimiter.getInstance().setGlobalRate(Long.parseLong(arg.substring("--limit=".length())) * 1024);
+			} else if (arg.startsWith("--metrics-log=")) {
+				MetricsRegistry.getInstance().startLog(new File(arg.substring("--metrics-log=".length())), 
+						Integer.getInteger("download.metricsInterval", MetricsRegistry.DEFAULT_LOG_INTERVAL));
+			} else if (arg.startsWith("--output=")) {
+				output = arg.substring("--output=".length());
+			} else if (!arg.startsWith("--")) {
+				input = arg;
+			}
+		}
+		
+		// Publish metrics from the start, not only once the first download runs.
+		MetricsRegistry.getInstance();
+		
+		if (headless) {
+			System.exit(runHeadless(input, output));
+		}
+		
+		DownloadManager manager = new DownloadManager();
+		// Run the Download Manager.
+		manager.go();
+
+	}
+	
+	/**
+	 * Download all URLs from input into output directory without graphic interface.
+	 * @param input
+	 * @param output
+	 * @return exit code, 0 if all downloads completed
+	 */
+	private static int runHeadless(String input, String output) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(input.equals("-") 
+					? new InputStreamReader(System.in) 
+					: new FileReader(input));
+			int failed = new BatchDownloader(new File(output), System.out).run(reader);
+			return (failed == 0) ? 0 : 1;
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			return 2;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+}
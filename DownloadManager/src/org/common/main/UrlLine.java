@@ -0,0 +1,97 @@
+package org.common.main;
+
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+
+import org.common.download.Download;
+import org.common.download.UrlVerifier;
+
+/**
+ * This class reads one line of a URL list: URL followed by mirror URLs
+ * of the same file, separated by spaces, and by expected checksum as algorithm:hex.
+ * Same format is used by headless batches and by lists imported in the window.
+ * @author nbabic
+ */
+class UrlLine {
+	
+	// URL followed by its mirrors
+	final URL[] mirrors;
+	// checksum algorithm and expected value, null if there is none
+	final String algorithm;
+	final String expected;
+	
+	private UrlLine(URL[] mirrors, String algorithm, String expected) {
+		this.mirrors = mirrors;
+		this.algorithm = algorithm;
+		this.expected = expected;
+	}
+	
+	/**
+	 * Check if line holds no URL: empty or a comment starting with #.
+	 * @param line trimmed line
+	 * @return
+	 */
+	static boolean isSkipped(String line) {
+		return line.length() == 0 || line.startsWith("#");
+	}
+	
+	/**
+	 * Read trimmed line, URLs and checksum are verified before any download starts.
+	 * @param line
+	 * @return
+	 * @throws IllegalArgumentException with message for the user if line is invalid
+	 */
+	static UrlLine parse(String line) {
+		// optional mirrors and checksum after URL
+		String[] parts = line.split("\\s+");
+		int urlCount = parts.length;
+		String checksum = null;
+		if (parts.length > 1 && parts[parts.length - 1].indexOf("://") == -1) {
+			checksum = parts[parts.length - 1];
+			urlCount--;
+		}
+		if (checksum != null && checksum.indexOf(':') < 1) {
+			throw new IllegalArgumentException("Invalid checksum, expected algorithm:hex: " + line);
+		}
+		
+		URL[] mirrors = new URL[urlCount];
+		for (int i = 0; i < urlCount; i++) {
+			mirrors[i] = UrlVerifier.verify(parts[i]);
+			if (mirrors[i] == null) {
+				throw new IllegalArgumentException("Invalid Download URL: " + line);
+			}
+		}
+		
+		String algorithm = null;
+		String expected = null;
+		if (checksum != null) {
+			int colon = checksum.indexOf(':');
+			algorithm = checksum.substring(0, colon);
+			expected = checksum.substring(colon + 1);
+			try {
+				Download.checkChecksum(algorithm, expected);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unsupported checksum algorithm: " + line);
+			}
+		}
+		return new UrlLine(mirrors, algorithm, expected);
+	}
+	
+	/**
+	 * Start download of this line into file, checksum is set before anything is downloaded.
+	 * @param fileName
+	 * @return
+	 */
+	Download start(String fileName) {
+		if (algorithm == null) {
+			return new Download(mirrors, fileName);
+		}
+		try {
+			return new Download(mirrors, fileName, algorithm, expected);
+		} catch (NoSuchAlgorithmException e) {
+			// checked in parse()
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
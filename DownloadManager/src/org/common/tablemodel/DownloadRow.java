@@ -0,0 +1,190 @@
+package org.common.tablemodel;
+
+import org.common.download.Download;
+import org.common.download.DownloadScheduler;
+
+/**
+ * This class keeps the formatted cell values of one table row.
+ * Every value is kept with the number it was formatted from, at the precision 
+ * it is shown with, and is formatted again only when that number changes, 
+ * so painting rows that didn't change allocates nothing.
+ * @author nbabic
+ */
+class DownloadRow {
+	
+	// Units of byte counts, each 1024 times the previous one.
+	private static final String[] UNITS = { "B", "KB", "MB", "GB", "TB" };
+	
+	// Value of keys before anything is formatted.
+	private static final long NOT_FORMATTED = Long.MIN_VALUE;
+	
+	// download shown in row
+	final Download download;
+	
+	private long sizeKey = NOT_FORMATTED;
+	private String sizeText;
+	private long downloadedKey = NOT_FORMATTED;
+	private String downloadedText;
+	private long speedKey = NOT_FORMATTED;
+	private String speedText;
+	private long remainingKey = NOT_FORMATTED;
+	private String remainingText;
+	
+	// status, error message and queue version status text was made from
+	private int status = -1;
+	private String errorMessage;
+	private int queueVersion;
+	private String statusText;
+	
+	DownloadRow(Download download) {
+		this.download = download;
+	}
+	
+	/**
+	 * Get file size, empty if not known.
+	 * @return
+	 */
+	String getSize() {
+		long size = download.getSize();
+		long key = (size < 0) ? -1 : bytesKey(size);
+		if (key != sizeKey) {
+			sizeKey = key;
+			sizeText = (size < 0) ? "" : formatBytes(key);
+		}
+		return sizeText;
+	}
+	
+	/**
+	 * Get number of bytes downloaded.
+	 * @return
+	 */
+	String getDownloaded() {
+		long key = bytesKey(Math.max(0, download.getDownloaded()));
+		if (key != downloadedKey) {
+			downloadedKey = key;
+			downloadedText = formatBytes(key);
+		}
+		return downloadedText;
+	}
+	
+	/**
+	 * Get percent complete, boxed values from 0 to 100 are shared by the JVM.
+	 * @return
+	 */
+	Integer getProgress() {
+		float progress = download.getProgress();
+		// NaN and negative while size is not known
+		int percent = (progress > 0) ? Math.min(100, (int) progress) : 0;
+		return Integer.valueOf(percent);
+	}
+	
+	/**
+	 * Get transfer speed, empty if download is not transferring.
+	 * @return
+	 */
+	String getSpeed() {
+		long speed = (long) download.getSpeed();
+		long key = (speed < 1) ? -1 : bytesKey(speed);
+		if (key != speedKey) {
+			speedKey = key;
+			speedText = (speed < 1) ? "" : formatBytes(key) + "/s";
+		}
+		return speedText;
+	}
+	
+	/**
+	 * Get estimated time left as h:mm:ss or m:ss, empty if not known.
+	 * @return
+	 */
+	String getRemainingTime() {
+		long seconds = (download.getStatus() == Download.DOWNLOADING) ? download.getRemainingTime() : -1;
+		if (seconds != remainingKey) {
+			remainingKey = seconds;
+			remainingText = (seconds < 0) ? "" : formatTime(seconds);
+		}
+		return remainingText;
+	}
+	
+	/**
+	 * Get status name with queue position or error message.
+	 * Queue position is looked up again only after the queue has changed.
+	 * @param currentQueueVersion number of queue changes seen by the table
+	 * @return
+	 */
+	String getStatus(int currentQueueVersion) {
+		int currentStatus = download.getStatus();
+		String currentMessage = download.getErrorMessage();
+		if (currentStatus == status && currentMessage == errorMessage 
+				&& (currentStatus != Download.QUEUED || currentQueueVersion == queueVersion)) {
+			return statusText;
+		}
+		
+		status = currentStatus;
+		errorMessage = currentMessage;
+		queueVersion = currentQueueVersion;
+		statusText = Download.STATUSES[currentStatus];
+		if (currentStatus == Download.QUEUED) {
+			int position = DownloadScheduler.getInstance().getQueuePosition(download);
+			if (position != -1) {
+				statusText = statusText + " (" + position + ")";
+			}
+		} else if (currentStatus == Download.ERROR && currentMessage != null) {
+			statusText = statusText + ": " + currentMessage;
+		}
+		return statusText;
+	}
+	
+	/**
+	 * Round byte count to what is shown: tenths of the largest unit it reaches,
+	 * with unit in the lowest 3 bits. Counts shown with the same text have the same key.
+	 * @param bytes
+	 * @return
+	 */
+	static long bytesKey(long bytes) {
+		int unit = 0;
+		long scale = 1;
+		while (unit < UNITS.length - 1 && bytes >= scale * 1024) {
+			scale *= 1024;
+			unit++;
+		}
+		return ((bytes / scale * 10 + bytes % scale * 10 / scale) << 3) | unit;
+	}
+	
+	/**
+	 * Format byte count key, bytes without decimals, larger units with one.
+	 * @param key
+	 * @return
+	 */
+	static String formatBytes(long key) {
+		int unit = (int) (key & 7);
+		long tenths = key >> 3;
+		if (unit == 0) {
+			return (tenths / 10) + " " + UNITS[unit];
+		}
+		return (tenths / 10) + "." + (tenths % 10) + " " + UNITS[unit];
+	}
+	
+	/**
+	 * Format seconds as h:mm:ss, or m:ss under an hour.
+	 * @param seconds
+	 * @return
+	 */
+	static String formatTime(long seconds) {
+		long hours = seconds / 3600;
+		long minutes = seconds / 60 % 60;
+		long rest = seconds % 60;
+		StringBuilder text = new StringBuilder(10);
+		if (hours > 0) {
+			text.append(hours).append(':');
+			if (minutes < 10) {
+				text.append('0');
+			}
+		}
+		text.append(minutes).append(':');
+		if (rest < 10) {
+			text.append('0');
+		}
+		return text.append(rest).toString();
+	}
+
+}
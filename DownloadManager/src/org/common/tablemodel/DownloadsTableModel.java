@@ -1,139 +1,248 @@
-package org.common.tablemodel;
-
-import java.util.*;
-
-import javax.swing.*;
-import javax.swing.event.TableModelListener;
-import javax.swing.table.*;
-
-import org.common.download.Download;
-
-/**
- * This class manages the download table's data as JTable object in graphic interface.
- * @author nbabic
- */
-public class DownloadsTableModel extends AbstractTableModel implements IDownloadsTableModel, Observer {
-
-	// Names for the table's columns
-	private static final String[] columnNames = {"URL", "Size", "Progress", "Status"};
-	
-	// Classes for each column's values
-	private static final Class[] columnClasses = {String.class, String.class, JProgressBar.class, String.class};
-	
-	// The table's list of downloads.
-	private ArrayList<Download> downloadList = new ArrayList<Download>();
-	
-	/**
-	 * Add a new download to the table.
-	 * @param download
-	 */
-	public void addDownload(Download download) {
-		//System.out.println("DownloadsTableModel.addDownload() " + download);
-		// Register to be notified when the download changes.
-		download.addObserver(this);
-		
-		// add to the list of downloads
-		downloadList.add(download);
-		
-		// notify table to insert new row
-		fireTableRowsInserted(getRowCount() - 1, getRowCount() - 1);
-	}
-	
-	/**
-	 * Get a download for the specified row.
-	 * @param row
-	 * @return
-	 */
-	public Download getDownload(int row) {
-		//System.out.println("DownloadsTableModel.getDownload() row " + row);
-		return downloadList.get(row);
-	}
-	
-	/**
-	 * Remove a download from the list.
-	 * @param row
-	 */
-	public void clearDownload(int row) {
-		//System.out.println("DownloadsTableModel.clearDownload() row " + row);
-		downloadList.remove(row);
-		
-		// Fire table row deletion notification to table.
-		fireTableRowsDeleted(row, row);
-	}
-
-	/**
-	 * Get table's column count.
-	 */
-	@Override
-	public int getColumnCount() {
-		//System.out.println("DownloadsTableModel.getColumnCount() " + columnNames.length);
-		return columnNames.length;
-	}
-	
-	/**
-	 * Get a column's name.
-	 */
-	public String getColumnName(int col) {
-		//System.out.println("DownloadsTableModel.getColumnName() " + columnNames[col]);
-		return columnNames[col];
-	}
-	
-	/**
-	 * Get a column's class.
-	 */
-	public Class getColumnClass(int col) {
-		//System.out.println("DownloadsTableModel.getColumnClass() col " + col);
-		return columnClasses[col];
-	}
-	
-	/**
-	 * Get table's row count.
-	 */
-	@Override
-	public int getRowCount() {
-		//System.out.println("DownloadsTableModel.getRowCount() " + downloadList.size());
-		return downloadList.size();
-	}
-	
-	/**
-	 * Get value for a specific row and column combination.
-	 */
-	@Override
-	public Object getValueAt(int rowIndex, int columnIndex) {
-		//System.out.println("DownloadsTableModel.getValueAt()");
-		
-		//get download object for selected row
-		Download download = downloadList.get(rowIndex);
-		//get values for each column
-		switch (columnIndex) {
-			case 0: // URL
-				//System.out.println("DownloadsTableModel.getValueAt() case0");
-				return download.getUrl();
-			case 1: // Size
-				//System.out.println("DownloadsTableModel.getValueAt() case1");
-				int size = download.getSize();
-				return (size == -1) ? "" : Integer.toString(size);
-			case 2: // Progress
-				//System.out.println("DownloadsTableModel.getValueAt() case2");
-				return new Float(download.getProgress());
-			case 3: // Status
-				//System.out.println("DownloadsTableModel.getValueAt() case3");
-				return Download.STATUSES[download.getStatus()];
-		}
-	    return "";
-	}
-
-	/**
-	 * Update is called when a Download notifies its observers of any changes. 
-	 */
-	@Override
-	public void update(Observable arg0, Object arg1) {
-		//System.out.println("DownloadsTableModel.update()");
-		
-		int index = downloadList.indexOf(arg0);
-		
-		// Fire table row update notification to table.
-	    fireTableRowsUpdated(index, index);		
-	}
-
+package org.common.tablemodel;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.swing.*;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.*;
+
+import org.common.download.Download;
+import org.common.download.DownloadScheduler;
+
+/**
+ * This class manages the download table's data as JTable object in graphic interface.
+ * @author nbabic
+ */
+public class DownloadsTableModel extends AbstractTableModel implements IDownloadsTableModel, Observer {
+
+	// Names for the table's columns
+	private static final String[] columnNames = {"URL", "Size", "Downloaded", "Progress", "Speed", "ETA", "Status"};
+	
+	// Classes for each column's values
+	private static final Class[] columnClasses = {String.class, String.class, String.class, JProgressBar.class, 
+		String.class, String.class, String.class};
+	
+	// The table's list of downloads, indexed both by row and by download.
+	private RowIndex downloadList = new RowIndex();
+	
+	// Delivers progress to the table once per frame.
+	private ProgressDispatcher progressDispatcher;
+	
+	// Number of scheduler queue changes, queue positions are looked up again after a change.
+	private final AtomicInteger queueVersion = new AtomicInteger();
+	
+	// True while a queue change is waiting for the event dispatch thread, 
+	// so a burst of queued downloads repaints the table once.
+	private final AtomicBoolean queueChangePending = new AtomicBoolean();
+	
+	/**
+	 * Register to be notified when scheduler queue changes, 
+	 * so queue positions shown in status column stay current.
+	 */
+	public DownloadsTableModel() {
+		//System.out.println("DownloadsTableModel.DownloadsTableModel()");
+		progressDispatcher = new ProgressDispatcher(this);
+		DownloadScheduler.getInstance().addObserver(this);
+	}
+	
+	/**
+	 * Add a new download to the table.
+	 * @param download
+	 */
+	public void addDownload(Download download) {
+		//System.out.println("DownloadsTableModel.addDownload() " + download);
+		// Register to be notified when the download changes.
+		download.addObserver(this);
+		
+		// add to the list of downloads
+		int row = downloadList.add(download);
+		
+		// notify table to insert new row
+		fireTableRowsInserted(row, row);
+	}
+	
+	/**
+	 * Add downloads to the table with one row insertion event.
+	 * @param downloads
+	 */
+	public void addDownloads(List<Download> downloads) {
+		//System.out.println("DownloadsTableModel.addDownloads() " + downloads.size());
+		if (downloads.isEmpty()) {
+			return;
+		}
+		
+		int first = downloadList.size();
+		for (Download download : downloads) {
+			download.addObserver(this);
+			downloadList.add(download);
+		}
+		
+		// new rows are always added at the end
+		fireTableRowsInserted(first, downloadList.size() - 1);
+	}
+	
+	/**
+	 * Get a download for the specified row.
+	 * @param row
+	 * @return
+	 */
+	public Download getDownload(int row) {
+		//System.out.println("DownloadsTableModel.getDownload() row " + row);
+		return downloadList.get(row);
+	}
+	
+	/**
+	 * Get row of a download.
+	 * @param download
+	 * @return
+	 */
+	public int getRow(Download download) {
+		//System.out.println("DownloadsTableModel.getRow()");
+		return downloadList.indexOf(download);
+	}
+	
+	/**
+	 * Get dispatcher delivering progress of this table.
+	 * @return
+	 */
+	ProgressDispatcher getProgressDispatcher() {
+		return progressDispatcher;
+	}
+	
+	/**
+	 * Remove a download from the list.
+	 * @param row
+	 */
+	public void clearDownload(int row) {
+		//System.out.println("DownloadsTableModel.clearDownload() row " + row);
+		Download download = downloadList.remove(row);
+		download.deleteObserver(this);
+		
+		// Fire table row deletion notification to table.
+		fireTableRowsDeleted(row, row);
+	}
+
+	/**
+	 * Get table's column count.
+	 */
+	@Override
+	public int getColumnCount() {
+		//System.out.println("DownloadsTableModel.getColumnCount() " + columnNames.length);
+		return columnNames.length;
+	}
+	
+	/**
+	 * Get a column's name.
+	 */
+	public String getColumnName(int col) {
+		//System.out.println("DownloadsTableModel.getColumnName() " + columnNames[col]);
+		return columnNames[col];
+	}
+	
+	/**
+	 * Get a column's class.
+	 */
+	public Class getColumnClass(int col) {
+		//System.out.println("DownloadsTableModel.getColumnClass() col " + col);
+		return columnClasses[col];
+	}
+	
+	/**
+	 * Get table's row count.
+	 */
+	@Override
+	public int getRowCount() {
+		//System.out.println("DownloadsTableModel.getRowCount() " + downloadList.size());
+		return downloadList.size();
+	}
+	
+	/**
+	 * Get value for a specific row and column combination.
+	 */
+	@Override
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		//System.out.println("DownloadsTableModel.getValueAt()");
+		
+		//get row with formatted values of download
+		DownloadRow row = downloadList.getEntry(rowIndex);
+		//get values for each column, formatted again only if changed
+		switch (columnIndex) {
+			case 0: // URL
+				//System.out.println("DownloadsTableModel.getValueAt() case0");
+				return row.download.getUrl();
+			case 1: // Size
+				//System.out.println("DownloadsTableModel.getValueAt() case1");
+				return row.getSize();
+			case 2: // Downloaded
+				//System.out.println("DownloadsTableModel.getValueAt() case2");
+				return row.getDownloaded();
+			case 3: // Progress
+				//System.out.println("DownloadsTableModel.getValueAt() case3");
+				return row.getProgress();
+			case 4: // Speed
+				//System.out.println("DownloadsTableModel.getValueAt() case4");
+				return row.getSpeed();
+			case 5: // ETA
+				//System.out.println("DownloadsTableModel.getValueAt() case5");
+				return row.getRemainingTime();
+			case 6: // Status
+				//System.out.println("DownloadsTableModel.getValueAt() case6");
+				return row.getStatus(queueVersion.get());
+		}
+	    return "";
+	}
+
+	/**
+	 * Update is called when a Download notifies its observers of any changes. 
+	 * Progress is collected and shown once per frame, 
+	 * status and queue changes are passed to the event dispatch thread right away.
+	 */
+	@Override
+	public void update(final Observable arg0, Object arg1) {
+		//System.out.println("DownloadsTableModel.update()");
+		
+		if (arg1 == Download.PROGRESS) {
+			progressDispatcher.markDirty((Download) arg0);
+			return;
+		}
+		
+		if (arg0 instanceof DownloadScheduler) {
+			queueVersion.incrementAndGet();
+			// earlier change not shown yet will show this one as well
+			if (!queueChangePending.compareAndSet(false, true)) {
+				return;
+			}
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				rowChanged(arg0);
+			}
+		});
+	}
+	
+	/**
+	 * Fire table update for download's row, called on the event dispatch thread.
+	 * @param observable
+	 */
+	private void rowChanged(Observable observable) {
+		// Queue changed, positions of all queued rows may have moved.
+		if (observable instanceof DownloadScheduler) {
+			queueChangePending.set(false);
+			if (getRowCount() > 0) {
+				fireTableRowsUpdated(0, getRowCount() - 1);
+			}
+			return;
+		}
+		
+		int index = downloadList.indexOf((Download) observable);
+		
+		// Download may have been cleared before this ran.
+		if (index != -1) {
+			// Fire table row update notification to table.
+			fireTableRowsUpdated(index, index);
+		}
+	}
+
 }
\ No newline at end of file
@@ -1,37 +1,51 @@
-package org.common.tablemodel;
-
-import java.util.Observable;
-
-import org.common.download.Download;
-
-public interface IDownloadsTableModel {
-	/**
-	 * Add a new download to the table.
-	 * @param download
-	 */
-	public void addDownload(Download download);
-	
-	/**
-	 * Get a download for the specified row.
-	 * @param row
-	 * @return
-	 */
-	public Download getDownload(int row);
-	
-	/**
-	 * Remove a download from the list.
-	 * @param row
-	 */
-	public void clearDownload(int row);
-
-	/**
-	 * Get a column's name.
-	 */
-	public String getColumnName(int col);
-	
-	/**
-	 * Get a column's class.
-	 */
-	public Class getColumnClass(int col);
-	
-}
+package org.common.tablemodel;
+
+import java.util.List;
+import java.util.Observable;
+
+import org.common.download.Download;
+
+public interface IDownloadsTableModel {
+	/**
+	 * Add a new download to the table.
+	 * @param download
+	 */
+	public void addDownload(Download download);
+	
+	/**
+	 * Add downloads to the table with one row insertion event.
+	 * @param downloads
+	 */
+	public void addDownloads(List<Download> downloads);
+	
+	/**
+	 * Get a download for the specified row.
+	 * @param row
+	 * @return
+	 */
+	public Download getDownload(int row);
+	
+	/**
+	 * Get row of a download.
+	 * @param download
+	 * @return
+	 */
+	public int getRow(Download download);
+	
+	/**
+	 * Remove a download from the list.
+	 * @param row
+	 */
+	public void clearDownload(int row);
+
+	/**
+	 * Get a column's name.
+	 */
+	public String getColumnName(int col);
+	
+	/**
+	 * Get a column's class.
+	 */
+	public Class getColumnClass(int col);
+	
+}
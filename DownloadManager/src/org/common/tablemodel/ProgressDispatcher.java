@@ -0,0 +1,83 @@
+package org.common.tablemodel;
+
+import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.Timer;
+
+import org.common.download.Download;
+
+/**
+ * This class collects progress of downloads from download threads
+ * and delivers it to the table on the event dispatch thread at a fixed frame rate.
+ * Download that moves many times in one frame is marked once, 
+ * and all rows changed during the frame are sent to the table as one update.
+ * Pending state is kept here, so other observers of the same download get its progress independently.
+ * @author nbabic
+ */
+public class ProgressDispatcher implements ActionListener {
+	
+	// Number of table updates per second.
+	public static final int FRAME_RATE = 25;
+	
+	// table to update
+	private final DownloadsTableModel tableModel;
+	// downloads with progress not yet shown
+	private final Set<Download> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+	// timer firing once per frame on the event dispatch thread
+	private final Timer timer;
+	
+	public ProgressDispatcher(DownloadsTableModel tableModel) {
+		//System.out.println("ProgressDispatcher.ProgressDispatcher()");
+		this.tableModel = tableModel;
+		timer = new Timer(1000 / FRAME_RATE, this);
+		timer.setCoalesce(true);
+		timer.start();
+	}
+	
+	/**
+	 * Mark download as having progress to show in the next frame.
+	 * Can be called from any thread.
+	 * @param download
+	 */
+	public void markDirty(Download download) {
+		// most calls find it marked already, checking first doesn't write to the set
+		if (!dirty.contains(download)) {
+			dirty.add(download);
+		}
+	}
+	
+	/**
+	 * Stop delivering progress.
+	 */
+	public void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * Flush dirty rows to the table, called by timer on the event dispatch thread.
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		int firstRow = Integer.MAX_VALUE;
+		int lastRow = -1;
+		
+		for (Iterator<Download> iterator = dirty.iterator(); iterator.hasNext();) {
+			Download download = iterator.next();
+			// unmark before values are read, progress after this marks it again
+			iterator.remove();
+			
+			int row = tableModel.getRow(download);
+			if (row != -1) {
+				firstRow = Math.min(firstRow, row);
+				lastRow = Math.max(lastRow, row);
+			}
+		}
+		
+		if (lastRow != -1) {
+			tableModel.fireTableRowsUpdated(firstRow, lastRow);
+		}
+	}
+
+}
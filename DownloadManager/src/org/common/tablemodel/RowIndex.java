@@ -0,0 +1,202 @@
+package org.common.tablemodel;
+
+import java.util.IdentityHashMap;
+
+import org.common.download.Download;
+
+/**
+ * This class keeps the table rows and finds the row of a download without scanning the list.
+ * Every download gets a stable slot with its formatted cell values when added, 
+ * slots are never shifted on removal,
+ * a Fenwick tree over occupied slots turns slot into row and row into slot in O(log n).
+ * Free slots are compacted away once they outnumber occupied ones.
+ * @author nbabic
+ */
+class RowIndex {
+	
+	// Initial number of slots.
+	private static final int INITIAL_CAPACITY = 64;
+	
+	// row of download in each slot, null for removed
+	private DownloadRow[] slots = new DownloadRow[INITIAL_CAPACITY];
+	// Fenwick tree counting occupied slots, 1-based
+	private int[] tree = new int[INITIAL_CAPACITY + 1];
+	// slot of each download, by identity
+	private final IdentityHashMap<Download, Integer> slotOf = new IdentityHashMap<Download, Integer>();
+	// number of slots handed out
+	private int used;
+	// number of downloads
+	private int size;
+	
+	/**
+	 * Get number of rows.
+	 * @return
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Add download as last row.
+	 * @param download
+	 * @return row of added download
+	 */
+	int add(Download download) {
+		if (used == slots.length) {
+			grow();
+		}
+		
+		int slot = used++;
+		slots[slot] = new DownloadRow(download);
+		slotOf.put(download, slot);
+		increment(slot, 1);
+		return size++;
+	}
+	
+	/**
+	 * Get download in row.
+	 * @param row
+	 * @return
+	 */
+	Download get(int row) {
+		return getEntry(row).download;
+	}
+	
+	/**
+	 * Get formatted cell values of row.
+	 * @param row
+	 * @return
+	 */
+	DownloadRow getEntry(int row) {
+		checkRow(row);
+		return slots[findSlot(row)];
+	}
+	
+	/**
+	 * Remove download in row, rows after it move up by one.
+	 * @param row
+	 * @return removed download
+	 */
+	Download remove(int row) {
+		checkRow(row);
+		int slot = findSlot(row);
+		Download download = slots[slot].download;
+		
+		slots[slot] = null;
+		slotOf.remove(download);
+		increment(slot, -1);
+		size--;
+		
+		// free slots take most of the space, squeeze them out
+		if (used > INITIAL_CAPACITY && size < used / 2) {
+			compact(slots.length);
+		}
+		return download;
+	}
+	
+	/**
+	 * Get row of download.
+	 * @param download
+	 * @return row or -1 if download is not in the table
+	 */
+	int indexOf(Download download) {
+		Integer slot = slotOf.get(download);
+		if (slot == null) {
+			return -1;
+		}
+		// row is number of occupied slots before this one
+		return prefixCount(slot) - 1;
+	}
+	
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+		}
+	}
+	
+	/**
+	 * Make room for more slots, by compacting if there are many free slots, 
+	 * otherwise by doubling capacity.
+	 */
+	private void grow() {
+		if (size < used / 2) {
+			compact(slots.length);
+		} else {
+			compact(slots.length * 2);
+		}
+	}
+	
+	/**
+	 * Move downloads to the first slots, keeping their order, and rebuild the tree.
+	 * @param capacity
+	 */
+	private void compact(int capacity) {
+		DownloadRow[] newSlots = new DownloadRow[capacity];
+		int slot = 0;
+		for (int i = 0; i < used; i++) {
+			if (slots[i] != null) {
+				newSlots[slot] = slots[i];
+				slotOf.put(slots[i].download, slot);
+				slot++;
+			}
+		}
+		slots = newSlots;
+		used = slot;
+		
+		// rebuild Fenwick tree in linear time
+		tree = new int[capacity + 1];
+		for (int i = 1; i <= capacity; i++) {
+			if (i <= used) {
+				tree[i]++;
+			}
+			int parent = i + (i & -i);
+			if (parent <= capacity) {
+				tree[parent] += tree[i];
+			}
+		}
+	}
+	
+	/**
+	 * Add delta to count of slot.
+	 * @param slot
+	 * @param delta
+	 */
+	private void increment(int slot, int delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+	
+	/**
+	 * Count occupied slots up to and including slot.
+	 * @param slot
+	 * @return
+	 */
+	private int prefixCount(int slot) {
+		int count = 0;
+		for (int i = slot + 1; i > 0; i -= i & -i) {
+			count += tree[i];
+		}
+		return count;
+	}
+	
+	/**
+	 * Find slot of the row-th occupied slot.
+	 * @param row
+	 * @return
+	 */
+	private int findSlot(int row) {
+		int position = 0;
+		int remaining = row + 1;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = position + step;
+			if (next < tree.length && tree[next] < remaining) {
+				position = next;
+				remaining -= tree[next];
+			}
+		}
+		// position is 1-based index of the slot before the one searched
+		return position;
+	}
+
+}
@@ -0,0 +1,363 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class puts the HttpURLConnection interface in front of one request sent through HttpClient,
+ * so downloads use it the same way as connections of other transports.
+ * Request is sent on connect(), response body is read through a stream
+ * that keeps the read timeout of the connection and can be interrupted.
+ * @author nbabic
+ */
+class HttpClientConnection extends HttpURLConnection {
+	
+	// Headers HttpClient sets itself and doesn't accept from the caller.
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(
+			Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+	
+	// client request is sent through
+	private final HttpClient client;
+	// response, null until connected
+	private HttpResponse<InputStream> response;
+	// response body, set on the client thread when headers arrive
+	private volatile BodyStream body;
+	
+	/**
+	 * Create connection to URL, nothing is sent until connect().
+	 * @param client
+	 * @param url
+	 */
+	HttpClientConnection(HttpClient client, URL url) {
+		super(url);
+		this.client = client;
+	}
+	
+	/**
+	 * Send request and wait for response headers.
+	 * @throws IOException
+	 */
+	@Override
+	public void connect() throws IOException {
+		if (connected) {
+			return;
+		}
+		
+		HttpRequest.Builder builder;
+		try {
+			builder = HttpRequest.newBuilder(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+		if (getReadTimeout() > 0) {
+			builder.timeout(Duration.ofMillis(getReadTimeout()));
+		}
+		for (Map.Entry<String, List<String>> header : getRequestProperties().entrySet()) {
+			if (header.getKey() == null || RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				builder.header(header.getKey(), value);
+			}
+		}
+		builder.method(method, HttpRequest.BodyPublishers.noBody());
+		
+		try {
+			response = client.send(builder.build(), new HttpResponse.BodyHandler<InputStream>() {
+				public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+					body = new BodyStream(getReadTimeout());
+					return body;
+				}
+			});
+		} catch (HttpTimeoutException e) {
+			// HttpConnectTimeoutException too, retried like timeouts of other transports
+			throw new SocketTimeoutException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Request interrupted");
+		}
+		connected = true;
+	}
+	
+	/**
+	 * Get HTTP status code of response.
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public int getResponseCode() throws IOException {
+		connect();
+		return response.statusCode();
+	}
+	
+	/**
+	 * Get response body.
+	 * @return
+	 * @throws IOException if server answered with an error
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		int responseCode = getResponseCode();
+		if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+			throw new FileNotFoundException(url.toString());
+		}
+		if (responseCode >= 400) {
+			throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+		}
+		return body;
+	}
+	
+	/**
+	 * Get response body if server answered with an error.
+	 * @return
+	 */
+	@Override
+	public InputStream getErrorStream() {
+		return (connected && response.statusCode() >= 400) ? body : null;
+	}
+	
+	/**
+	 * Get response body whatever the status, null if not connected.
+	 * @return
+	 */
+	InputStream getBody() {
+		return body;
+	}
+	
+	/**
+	 * Get value of response header, null if there is no such header or request failed.
+	 * @param name
+	 * @return
+	 */
+	@Override
+	public String getHeaderField(String name) {
+		try {
+			connect();
+		} catch (IOException e) {
+			return null;
+		}
+		return response.headers().firstValue(name).orElse(null);
+	}
+	
+	/**
+	 * Get n-th response header name, status line has no name.
+	 * @param n
+	 * @return
+	 */
+	@Override
+	public String getHeaderFieldKey(int n) {
+		String[] header = getHeader(n);
+		return (header == null) ? null : header[0];
+	}
+	
+	/**
+	 * Get n-th response header value, 0 is the status line.
+	 * @param n
+	 * @return
+	 */
+	@Override
+	public String getHeaderField(int n) {
+		String[] header = getHeader(n);
+		return (header == null) ? null : header[1];
+	}
+	
+	@Override
+	public Map<String, List<String>> getHeaderFields() {
+		try {
+			connect();
+		} catch (IOException e) {
+			return Collections.emptyMap();
+		}
+		return response.headers().map();
+	}
+	
+	/**
+	 * Get name and value of n-th response header, 0 is the status line.
+	 * @param n
+	 * @return null if there is no such header
+	 */
+	private String[] getHeader(int n) {
+		try {
+			connect();
+		} catch (IOException e) {
+			return null;
+		}
+		if (n == 0) {
+			String version = (response.version() == HttpClient.Version.HTTP_2) ? "HTTP/2" : "HTTP/1.1";
+			return new String[] { null, version + " " + response.statusCode() };
+		}
+		int index = 0;
+		for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+			for (String value : header.getValue()) {
+				if (++index == n) {
+					return new String[] { header.getKey(), value };
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Stop reading response, on HTTP/2 only this stream is reset,
+	 * HTTP/1.1 connection is closed if body was not read to the end.
+	 */
+	@Override
+	public void disconnect() {
+		if (body != null) {
+			body.close();
+		}
+	}
+	
+	@Override
+	public boolean usingProxy() {
+		return false;
+	}
+	
+	/**
+	 * This class receives response body from HttpClient and hands it out as a stream.
+	 * One part of the body is requested at a time, the next when the reader takes it,
+	 * so a slow reader holds back the server instead of filling memory.
+	 */
+	private static class BodyStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+		
+		// Marks end of body in the queue.
+		private static final List<ByteBuffer> END = new ArrayList<ByteBuffer>(0);
+		
+		// parts of body received and not read yet
+		private final BlockingQueue<List<ByteBuffer>> parts = new LinkedBlockingQueue<List<ByteBuffer>>();
+		// time read waits for the next part, in milliseconds, 0 waits forever
+		private final int timeout;
+		private volatile Flow.Subscription subscription;
+		private volatile Throwable failure;
+		private volatile boolean closed;
+		// whole body has been received, reading it to the end is not needed to keep the connection
+		private volatile boolean received;
+		// part being read
+		private Iterator<ByteBuffer> part = Collections.emptyIterator();
+		private ByteBuffer buffer;
+		private boolean finished;
+		
+		BodyStream(int timeout) {
+			this.timeout = timeout;
+		}
+		
+		public CompletionStage<InputStream> getBody() {
+			return CompletableFuture.<InputStream>completedFuture(this);
+		}
+		
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (closed) {
+				subscription.cancel();
+			} else {
+				subscription.request(1);
+			}
+		}
+		
+		public void onNext(List<ByteBuffer> item) {
+			parts.add(item);
+		}
+		
+		public void onError(Throwable throwable) {
+			failure = throwable;
+			parts.add(END);
+		}
+		
+		public void onComplete() {
+			received = true;
+			parts.add(END);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xff);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer next = next();
+			if (next == null) {
+				return -1;
+			}
+			int count = Math.min(len, next.remaining());
+			next.get(b, off, count);
+			return count;
+		}
+		
+		@Override
+		public int available() {
+			return (buffer == null) ? 0 : buffer.remaining();
+		}
+		
+		/**
+		 * Get buffer with bytes left to read, waiting for the next part of body if needed.
+		 * @return null at the end of body
+		 * @throws IOException
+		 */
+		private ByteBuffer next() throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			while (buffer == null || !buffer.hasRemaining()) {
+				if (part.hasNext()) {
+					buffer = part.next();
+					continue;
+				}
+				if (finished) {
+					return null;
+				}
+				
+				List<ByteBuffer> item;
+				try {
+					item = (timeout > 0) ? parts.poll(timeout, TimeUnit.MILLISECONDS) : parts.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Read interrupted");
+				}
+				if (item == null) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+				if (item == END) {
+					finished = true;
+					if (failure != null) {
+						throw (failure instanceof IOException)
+								? (IOException) failure
+								: new IOException(failure.getMessage(), failure);
+					}
+					return null;
+				}
+				part = item.iterator();
+				// next part comes while this one is read
+				subscription.request(1);
+			}
+			return buffer;
+		}
+		
+		/**
+		 * Stop receiving body unless it was received to the end.
+		 * Cancelling resets the stream on HTTP/2 and closes the connection on HTTP/1.1.
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			Flow.Subscription current = subscription;
+			if (current != null && !received) {
+				current.cancel();
+			}
+		}
+	
+	}
+
+}
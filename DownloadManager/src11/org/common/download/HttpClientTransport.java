@@ -0,0 +1,88 @@
+package org.common.download;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * This class sends requests through java.net.http.HttpClient.
+ * HTTP/2 is negotiated with servers that support it, over TLS with ALPN
+ * and over plain HTTP with an h2c upgrade, and then all downloads from one host
+ * are multiplexed over a single connection, so the TCP and TLS handshakes are paid once per host.
+ * Servers that only speak HTTP/1.1 get a pool of persistent connections.
+ * Needs Java 11 or newer, so it is compiled apart from the rest of the application
+ * and loaded by Transports.getHttpClient().
+ * @author nbabic
+ */
+public class HttpClientTransport implements ITransport {
+	
+	// Most bytes read from an unfinished body to keep its connection, like the JVM does for HttpURLConnection.
+	private static final int DRAIN_LIMIT = 64 * 1024;
+	
+	// transport shared by all downloads
+	public static final HttpClientTransport INSTANCE = new HttpClientTransport();
+	
+	// client holding connections of all downloads
+	private final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.connectTimeout(Duration.ofMillis(RetryPolicy.CONNECT_TIMEOUT))
+			.build();
+	
+	private HttpClientTransport() {
+	}
+	
+	/**
+	 * Open connection to URL, request is sent over a shared connection to the host if there is one.
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public HttpURLConnection open(URL url) throws IOException {
+		return new HttpClientConnection(client, url);
+	}
+	
+	/**
+	 * Close response body, the connection stays open for other requests if the body was read to the end.
+	 * What is left of a small body is read first, so HEAD, 304 and error responses 
+	 * and transfers that stopped at the last byte before the end of body was seen don't cost a connection.
+	 * @param connection
+	 * @param stream
+	 */
+	@Override
+	public void release(HttpURLConnection connection, InputStream stream) {
+		if (stream == null) {
+			// body of a HEAD, 304 or error response that was never opened
+			stream = ((HttpClientConnection) connection).getBody();
+		}
+		if (stream == null) {
+			return;
+		}
+		try {
+			byte[] rest = new byte[4096];
+			int drained = 0;
+			int count;
+			while (drained < DRAIN_LIMIT && (count = stream.read(rest)) != -1) {
+				drained += count;
+			}
+		} catch (IOException e) {
+			// body is cancelled on close
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Get transport name.
+	 * @return
+	 */
+	@Override
+	public String getName() {
+		return "HTTP/2";
+	}
+
+}